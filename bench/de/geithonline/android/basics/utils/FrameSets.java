@@ -0,0 +1,129 @@
+package de.geithonline.android.basics.utils;
+
+import java.util.Random;
+
+/**
+ * Synthetic ARGB frame sets for the GIF benchmarks. Every set is a short animation with some motion between the frames, so delta frames and palette reuse
+ * behave as on real content. The frames only depend on the seed, runs are repeatable.
+ */
+public final class FrameSets {
+
+	/** Flat UI: a few solid colors, cards, text lines, scrolling. */
+	public static final String FLAT = "flat";
+	/** Photographic: smooth structures at several scales plus sensor noise, panning. */
+	public static final String PHOTO = "photo";
+	/** Linear and radial gradients, moving. */
+	public static final String GRADIENT = "gradient";
+	/** Random colors per pixel and frame, the worst case for every stage. */
+	public static final String NOISE = "noise";
+
+	public static final String[] ALL = { FLAT, PHOTO, GRADIENT, NOISE };
+
+	private FrameSets() {
+	}
+
+	/**
+	 * Creates count frames of the given content.
+	 *
+	 * @param content
+	 *            String one of the content constants.
+	 * @param w
+	 *            int frame width.
+	 * @param h
+	 *            int frame height.
+	 * @param count
+	 *            int number of frames.
+	 * @return array of ARGB frames, each <code>w * h</code> pixels.
+	 */
+	public static int[][] create(final String content, final int w, final int h, final int count) {
+		final int[][] frames = new int[count][];
+		final Random random = new Random(42);
+		for (int f = 0; f < count; f++) {
+			final int[] argb = new int[w * h];
+			if (FLAT.equals(content)) {
+				flat(argb, w, h, f);
+			} else if (PHOTO.equals(content)) {
+				photo(argb, w, h, f, random);
+			} else if (GRADIENT.equals(content)) {
+				gradient(argb, w, h, f);
+			} else if (NOISE.equals(content)) {
+				for (int i = 0; i < argb.length; i++) {
+					argb[i] = 0xff000000 | random.nextInt(0x1000000);
+				}
+			} else {
+				throw new IllegalArgumentException("unknown content " + content);
+			}
+			frames[f] = argb;
+		}
+		return frames;
+	}
+
+	private static void flat(final int[] argb, final int w, final int h, final int frame) {
+		final int unit = Math.max(4, h / 40);
+		final int scroll = frame * unit;
+		fill(argb, w, 0, 0, w, h, 0xfffafafa);
+		fill(argb, w, 0, 0, w, 3 * unit, 0xff3f51b5); // toolbar
+		for (int card = 0;; card++) {
+			final int top = 4 * unit + card * 9 * unit - scroll;
+			if (top >= h) {
+				break;
+			}
+			fill(argb, w, unit, top, w - unit, top + 8 * unit, 0xffffffff);
+			fill(argb, w, 2 * unit, top + unit, 6 * unit, top + 5 * unit, ((card & 1) == 0) ? 0xffff4081 : 0xff4caf50); // icon
+			for (int line = 0; line < 3; line++) {
+				final int y = top + unit + line * 2 * unit;
+				final int length = (w - 9 * unit) * (5 - line) / 5;
+				fill(argb, w, 7 * unit, y, 7 * unit + length, y + unit, (line == 0) ? 0xff212121 : 0xff757575); // text
+			}
+		}
+	}
+
+	private static void fill(final int[] argb, final int w, final int x0, final int y0, final int x1, final int y1, final int color) {
+		final int h = argb.length / w;
+		for (int y = Math.max(0, y0); y < Math.min(h, y1); y++) {
+			for (int x = Math.max(0, x0); x < Math.min(w, x1); x++) {
+				argb[y * w + x] = color;
+			}
+		}
+	}
+
+	private static void photo(final int[] argb, final int w, final int h, final int frame, final Random random) {
+		final double scale = 1080.0 / h;
+		final int pan = frame * 3;
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				final double u = (x + pan) * scale;
+				final double v = y * scale;
+				final double base = Math.sin(u * 0.004) * Math.cos(v * 0.005) + 0.5 * Math.sin((u + v) * 0.017) + 0.25 * Math.sin(u * 0.061 - v * 0.043);
+				final double hue = Math.sin(u * 0.002 + v * 0.003);
+				int r = (int) (120 + 70 * base + 40 * hue);
+				int g = (int) (110 + 60 * base - 20 * hue);
+				int b = (int) (90 + 40 * base - 50 * hue);
+				final int grain = random.nextInt(9) - 4;
+				r = clamp(r + grain);
+				g = clamp(g + grain);
+				b = clamp(b + grain);
+				argb[y * w + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+	}
+
+	private static void gradient(final int[] argb, final int w, final int h, final int frame) {
+		final int cx = w / 2 + frame * w / 64;
+		final int cy = h / 2;
+		final double radius = Math.hypot(w, h) / 2;
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				final int r = (x * 255) / w;
+				final int g = (y * 255) / h;
+				final int b = clamp((int) (255 * (1 - Math.hypot(x - cx, y - cy) / radius)));
+				argb[y * w + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+	}
+
+	private static int clamp(final int c) {
+		return (c < 0) ? 0 : (c > 255) ? 255 : c;
+	}
+
+}
@@ -0,0 +1,254 @@
+package de.geithonline.android.basics.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * Benchmarks for the GIF encoding pipeline, runs on a plain JVM. The frames are fed as int arrays, so no Android class is loaded; android.jar is only needed
+ * to compile:
+ *
+ * <pre>
+ * javac -cp $ANDROID_HOME/platforms/android-23/android.jar -d bin/bench src/de/geithonline/android/basics/utils/*Quantizer.java \
+ *     src/de/geithonline/android/basics/utils/NeuQuant.java src/de/geithonline/android/basics/utils/LZWEncoder.java \
+ *     src/de/geithonline/android/basics/utils/AnimatedGifEncoder.java src/de/geithonline/android/basics/utils/AsyncChannelOutputStream.java \
+ *     src/de/geithonline/android/basics/utils/EncoderMetricsListener.java bench/de/geithonline/android/basics/utils/*.java
+ * java -cp bin/bench de.geithonline.android.basics.utils.GifBenchmark [option=value ...]
+ * </pre>
+ *
+ * Options, comma separated lists: <code>stages</code> (extract, learn, map, lzw, encode), <code>content</code> (flat, photo, gradient, noise),
+ * <code>sizes</code> (frame heights, 16:9), <code>quality</code> (NeuQuant sample factors), <code>warmup</code> and <code>time</code> (milliseconds per
+ * benchmark). Defaults run everything at 320p, 720p and 1080p with quality 1, 10 and 30.
+ * <p>
+ * Every benchmark runs on the calling thread: first for the warmup time, but at least twice through the frame set, then measured for the given time.
+ * Reported are frames per second, megapixels per second, bytes allocated per frame (on HotSpot based JVMs, else -1) and output bytes per frame where a stage
+ * produces output.
+ */
+public final class GifBenchmark {
+
+	private static final int FRAMES = 8; // frames per set, cycled
+
+	static volatile long sink; // consumes results, so the JIT cannot drop the work
+
+	private static long warmupMillis = 1000;
+	private static long measureMillis = 2000;
+
+	/**
+	 * One operation of a benchmark, encoding a single frame.
+	 */
+	private interface Op {
+		/**
+		 * @return bytes of output produced, 0 if the stage produces none.
+		 */
+		long run(int frame) throws IOException;
+	}
+
+	private GifBenchmark() {
+	}
+
+	public static void main(final String[] args) throws IOException {
+		String[] stages = { "extract", "learn", "map", "lzw", "encode" };
+		String[] contents = FrameSets.ALL;
+		int[] sizes = { 320, 720, 1080 };
+		int[] qualities = { 1, 10, 30 };
+		for (final String arg : args) {
+			final int eq = arg.indexOf('=');
+			if (eq < 0) {
+				throw new IllegalArgumentException("option=value expected: " + arg);
+			}
+			final String key = arg.substring(0, eq);
+			final String[] values = arg.substring(eq + 1).split(",");
+			if ("stages".equals(key)) {
+				stages = values;
+			} else if ("content".equals(key)) {
+				contents = values;
+			} else if ("sizes".equals(key)) {
+				sizes = ints(values);
+			} else if ("quality".equals(key)) {
+				qualities = ints(values);
+			} else if ("warmup".equals(key)) {
+				warmupMillis = Long.parseLong(values[0]);
+			} else if ("time".equals(key)) {
+				measureMillis = Long.parseLong(values[0]);
+			} else {
+				throw new IllegalArgumentException("unknown option " + key);
+			}
+		}
+
+		System.out.println(String.format(Locale.US, "%-8s %-9s %9s %4s %10s %9s %14s %12s", "stage", "content", "size", "q", "frames/s", "Mpix/s",
+				"alloc B/frame", "out B/frame"));
+		for (final String content : contents) {
+			for (final int height : sizes) {
+				final int width = (height * 16 / 9 + 1) & ~1;
+				final int[][] frames = FrameSets.create(content, width, height, FRAMES);
+				for (final String stage : stages) {
+					if ("extract".equals(stage)) {
+						report(stage, content, width, height, 0, extract(frames, width, height));
+						continue;
+					}
+					for (final int quality : qualities) {
+						report(stage, content, width, height, quality, stage(stage, frames, width, height, quality));
+					}
+				}
+			}
+		}
+	}
+
+	private static int[] ints(final String[] values) {
+		final int[] ints = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			ints[i] = Integer.parseInt(values[i].trim());
+		}
+		return ints;
+	}
+
+	private static double[] extract(final int[][] frames, final int w, final int h) throws IOException {
+		final AnimatedGifEncoder encoder = new AnimatedGifEncoder();
+		encoder.setSize(w, h);
+		return measure(new Op() {
+			@Override
+			public long run(final int frame) {
+				encoder.getImagePixels(frames[frame % FRAMES], null, 0, w, h);
+				sink += encoder.pixels[frame % encoder.pixels.length];
+				return 0;
+			}
+		});
+	}
+
+	private static double[] stage(final String stage, final int[][] frames, final int w, final int h, final int quality) throws IOException {
+		if ("encode".equals(stage)) {
+			return encode(frames, w, h, quality);
+		}
+		// inputs of the later stages, prepared outside of the measurement
+		final int len = w * h * 3;
+		final byte[][] bgr = new byte[FRAMES][];
+		final NeuQuant[] nets = new NeuQuant[FRAMES];
+		final byte[][] indexed = new byte[FRAMES][];
+		final AnimatedGifEncoder encoder = new AnimatedGifEncoder();
+		encoder.setSize(w, h);
+		for (int f = 0; f < FRAMES; f++) {
+			encoder.getImagePixels(frames[f], null, 0, w, h);
+			bgr[f] = encoder.pixels.clone();
+			nets[f] = new NeuQuant(bgr[f], len, quality);
+			nets[f].process();
+			indexed[f] = new byte[w * h];
+			map(nets[f], bgr[f], indexed[f]);
+		}
+		if ("learn".equals(stage)) {
+			final NeuQuant nq = new NeuQuant(null, 0, quality);
+			return measure(new Op() {
+				@Override
+				public long run(final int frame) {
+					nq.reset(bgr[frame % FRAMES], len, quality);
+					sink += nq.process()[0];
+					return 0;
+				}
+			});
+		} else if ("map".equals(stage)) {
+			final byte[] out = new byte[w * h];
+			return measure(new Op() {
+				@Override
+				public long run(final int frame) {
+					map(nets[frame % FRAMES], bgr[frame % FRAMES], out);
+					sink += out[frame % out.length];
+					return 0;
+				}
+			});
+		} else if ("lzw".equals(stage)) {
+			final LZWEncoder lzw = new LZWEncoder(w, h, indexed[0], 8);
+			return measure(new Op() {
+				@Override
+				public long run(final int frame) {
+					lzw.reset(w, h, indexed[frame % FRAMES], 8);
+					return lzw.encode();
+				}
+			});
+		}
+		throw new IllegalArgumentException("unknown stage " + stage);
+	}
+
+	private static void map(final NeuQuant nq, final byte[] bgr, final byte[] indexed) {
+		for (int i = 0, k = 0; i < indexed.length; i++, k += 3) {
+			indexed[i] = (byte) AnimatedGifEncoder.mapPixel(nq, AnimatedGifEncoder.MAP_SEARCH, bgr[k] & 0xff, bgr[k + 1] & 0xff, bgr[k + 2] & 0xff);
+		}
+	}
+
+	private static double[] encode(final int[][] frames, final int w, final int h, final int quality) throws IOException {
+		final CountingStream out = new CountingStream();
+		final AnimatedGifEncoder encoder = new AnimatedGifEncoder();
+		encoder.setQuality(quality);
+		encoder.setRepeat(0);
+		encoder.start(out);
+		final double[] result = measure(new Op() {
+			@Override
+			public long run(final int frame) {
+				final long before = out.count;
+				encoder.addFrame(frames[frame % FRAMES], w, h);
+				return out.count - before;
+			}
+		});
+		encoder.finish();
+		return result;
+	}
+
+	/**
+	 * Runs the operation for the warmup time, then for the measurement time.
+	 *
+	 * @return frames per second, bytes allocated per frame, output bytes per frame.
+	 */
+	private static double[] measure(final Op op) throws IOException {
+		int frame = 0;
+		final long warmupEnd = System.nanoTime() + warmupMillis * 1000000L;
+		do {
+			op.run(frame++);
+		} while ((frame < 2 * FRAMES) || (System.nanoTime() < warmupEnd)); // every frame at least twice, for steady state buffers
+
+		final long allocStart = allocatedBytes();
+		final long start = System.nanoTime();
+		final long end = start + measureMillis * 1000000L;
+		long ops = 0;
+		long bytes = 0;
+		long now;
+		do {
+			bytes += op.run(frame++);
+			ops++;
+		} while ((now = System.nanoTime()) < end);
+		final long allocEnd = allocatedBytes();
+		final double seconds = (now - start) / 1e9;
+		final double alloc = (allocStart < 0) ? -1 : (double) (allocEnd - allocStart) / ops;
+		return new double[] { ops / seconds, alloc, (double) bytes / ops };
+	}
+
+	private static long allocatedBytes() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private static void report(final String stage, final String content, final int w, final int h, final int quality, final double[] result) {
+		System.out.println(String.format(Locale.US, "%-8s %-9s %9s %4s %10.1f %9.1f %14.0f %12.0f", stage, content, w + "x" + h,
+				(quality > 0) ? String.valueOf(quality) : "-", result[0], result[0] * w * h / 1e6, result[1], result[2]));
+	}
+
+	/**
+	 * Discards the output, counting the bytes.
+	 */
+	private static class CountingStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(final int b) {
+			count++;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			count += len;
+		}
+	}
+
+}
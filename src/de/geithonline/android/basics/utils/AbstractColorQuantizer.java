@@ -0,0 +1,204 @@
+package de.geithonline.android.basics.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Base for quantizers that build a palette in one go and map pixels to the closest entry by euclidean distance. Keeps the palette sorted by green, so a
+ * search only has to look at entries whose green value is closer than the best match found so far. Also offers a 32x32x32 color histogram for subclasses.
+ */
+public abstract class AbstractColorQuantizer implements ColorQuantizer {
+
+	protected byte[] pixels; // BGR pixels to build the palette from
+	protected int length; // bytes used in pixels
+	protected int sample; // sampling factor
+	protected final byte[] palette = new byte[3 * 256]; // BGR palette handed out by process()
+
+	private int colors; // palette entries in use
+	private final int[] sortedB = new int[256]; // palette sorted by green
+	private final int[] sortedG = new int[256];
+	private final int[] sortedR = new int[256];
+	private final int[] sortedIndex = new int[256]; // palette index of each sorted entry
+	private final int[] sortedPos = new int[256]; // sorted position of each palette index
+	private final int[] greenIndex = new int[256]; // first sorted position with at least that green
+	private short[] cache; // inverse color map [b>>3][g>>3][r>>3], -1 = not yet filled
+
+	protected int[] histCount; // pixels per 32x32x32 histogram cell, index (b>>3)<<10 | (g>>3)<<5 | r>>3
+	protected long[] histB; // color sums per cell
+	protected long[] histG;
+	protected long[] histR;
+
+	@Override
+	public void reset(final byte[] pixels, final int len, final int sample) {
+		this.pixels = pixels;
+		length = len;
+		this.sample = Math.max(1, sample);
+	}
+
+	@Override
+	public byte[] process(final ForkJoinPool pool, final int parallelism) {
+		Arrays.fill(palette, (byte) 0);
+		colors = Math.max(1, buildPalette(palette));
+		buildIndex();
+		if (cache != null) {
+			Arrays.fill(cache, (short) -1);
+		}
+		return palette;
+	}
+
+	/**
+	 * Builds the palette from the pixels set by <code>reset</code>.
+	 *
+	 * @param palette
+	 *            byte array to fill with BGR entries, cleared to black.
+	 * @return number of entries used, at most 256.
+	 */
+	protected abstract int buildPalette(byte[] palette);
+
+	/**
+	 * Counts the sampled pixels into the 32x32x32 histogram, keeping the color sums of every cell.
+	 */
+	protected void histogram() {
+		if (histCount == null) {
+			histCount = new int[1 << 15];
+			histB = new long[1 << 15];
+			histG = new long[1 << 15];
+			histR = new long[1 << 15];
+		} else {
+			Arrays.fill(histCount, 0);
+			Arrays.fill(histB, 0);
+			Arrays.fill(histG, 0);
+			Arrays.fill(histR, 0);
+		}
+		final int step = 3 * sample;
+		for (int i = 0; i + 2 < length; i += step) {
+			final int b = pixels[i] & 0xff;
+			final int g = pixels[i + 1] & 0xff;
+			final int r = pixels[i + 2] & 0xff;
+			final int key = ((b >> 3) << 10) | ((g >> 3) << 5) | (r >> 3);
+			histCount[key]++;
+			histB[key] += b;
+			histG[key] += g;
+			histR[key] += r;
+		}
+	}
+
+	/**
+	 * Writes the mean color of count pixels with the given color sums into the palette.
+	 */
+	protected static void setEntry(final byte[] palette, final int index, final long b, final long g, final long r, final long count) {
+		palette[index * 3] = (byte) ((b + count / 2) / count);
+		palette[index * 3 + 1] = (byte) ((g + count / 2) / count);
+		palette[index * 3 + 2] = (byte) ((r + count / 2) / count);
+	}
+
+	private void buildIndex() {
+		// insertion sort by green
+		for (int i = 0; i < colors; i++) {
+			final int g = palette[i * 3 + 1] & 0xff;
+			int j = i;
+			while ((j > 0) && (sortedG[j - 1] > g)) {
+				sortedB[j] = sortedB[j - 1];
+				sortedG[j] = sortedG[j - 1];
+				sortedR[j] = sortedR[j - 1];
+				sortedIndex[j] = sortedIndex[j - 1];
+				j--;
+			}
+			sortedB[j] = palette[i * 3] & 0xff;
+			sortedG[j] = g;
+			sortedR[j] = palette[i * 3 + 2] & 0xff;
+			sortedIndex[j] = i;
+		}
+		for (int i = 0; i < colors; i++) {
+			sortedPos[sortedIndex[i]] = i;
+		}
+		int pos = 0;
+		for (int g = 0; g < 256; g++) {
+			while ((pos < colors) && (sortedG[pos] < g)) {
+				pos++;
+			}
+			greenIndex[g] = pos;
+		}
+	}
+
+	@Override
+	public int map(final int b, final int g, final int r) {
+		return search(b, g, r, Integer.MAX_VALUE, 0);
+	}
+
+	@Override
+	public int map(final int b, final int g, final int r, final int hint) {
+		final int pos = sortedPos[hint];
+		final int db = sortedB[pos] - b;
+		final int dg = sortedG[pos] - g;
+		final int dr = sortedR[pos] - r;
+		return search(b, g, r, db * db + dg * dg + dr * dr + 1, hint);
+	}
+
+	private int search(final int b, final int g, final int r, int bestd, int best) {
+		int i = greenIndex[g]; // start at the first entry with at least that green and work outwards
+		int j = i - 1;
+		while ((i < colors) || (j >= 0)) {
+			if (i < colors) {
+				final int dg = sortedG[i] - g;
+				int d = dg * dg;
+				if (d >= bestd) {
+					i = colors; // stop iter
+				} else {
+					final int db = sortedB[i] - b;
+					d += db * db;
+					if (d < bestd) {
+						final int dr = sortedR[i] - r;
+						d += dr * dr;
+						if (d < bestd) {
+							bestd = d;
+							best = sortedIndex[i];
+						}
+					}
+					i++;
+				}
+			}
+			if (j >= 0) {
+				final int dg = g - sortedG[j];
+				int d = dg * dg;
+				if (d >= bestd) {
+					j = -1; // stop iter
+				} else {
+					final int db = sortedB[j] - b;
+					d += db * db;
+					if (d < bestd) {
+						final int dr = sortedR[j] - r;
+						d += dr * dr;
+						if (d < bestd) {
+							bestd = d;
+							best = sortedIndex[j];
+						}
+					}
+					j--;
+				}
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public void prepareCache() {
+		if (cache == null) {
+			cache = new short[1 << 15];
+			Arrays.fill(cache, (short) -1);
+		}
+	}
+
+	@Override
+	public int lookup(final int b, final int g, final int r) {
+		final int key = ((b >> 3) << 10) | ((g >> 3) << 5) | (r >> 3);
+		int index = cache[key];
+		if (index < 0) {
+			// concurrent misses on the same cell store the same value
+			index = map((b & 0xf8) | 4, (g & 0xf8) | 4, (r & 0xf8) | 4);
+			cache[key] = (short) index;
+		}
+		return index;
+	}
+
+}
@@ -0,0 +1,241 @@
+package de.geithonline.android.basics.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs decodes and transforms of bitmaps on a fixed number of background threads and delivers the results on the main thread, so views can ask for images
+ * without blocking it. Work is identified by a key: requests for a key whose work is still in flight share it, so two views showing the same image cause a
+ * single decode. Every request can be cancelled, e.g. when its view is recycled; work nobody waits for any more is cancelled too, or its result dropped if
+ * it is already running.
+ * <p>
+ * A request cancelled on the main thread is never called back. All methods are thread safe.
+ */
+public class AsyncBitmapLoader {
+
+	/** Default number of background threads. */
+	public static final int DEFAULT_THREADS = 2;
+
+	/**
+	 * Receives the result of a request on the main thread.
+	 */
+	public interface Callback {
+
+		/**
+		 * @param bitmap
+		 *            Bitmap loaded, or null if loading failed. Shared with the other requests of the same key.
+		 */
+		void onBitmapLoaded(Bitmap bitmap);
+
+	}
+
+	/**
+	 * A request waiting for its result, see <code>cancel</code>.
+	 */
+	public final class Request {
+
+		private final Load load;
+		private final Callback callback;
+		private boolean cancelled;
+
+		private Request(final Load load, final Callback callback) {
+			this.load = load;
+			this.callback = callback;
+		}
+
+		/**
+		 * Cancels the request. Its work is cancelled as well if no other request waits for it.
+		 */
+		public void cancel() {
+			synchronized (AsyncBitmapLoader.this) {
+				if (cancelled) {
+					return;
+				}
+				cancelled = true;
+				load.requests.remove(this);
+				if (load.requests.isEmpty()) {
+					load.cancel(false);
+					if (loads.get(load.key) == load) {
+						loads.remove(load.key);
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return true if cancelled or delivered.
+		 */
+		public boolean isDone() {
+			synchronized (AsyncBitmapLoader.this) {
+				return cancelled || !load.requests.contains(this);
+			}
+		}
+
+	}
+
+	// the work for a key and the requests waiting for it; posts the delivery to the main thread once done
+	private final class Load extends FutureTask<Bitmap> {
+
+		private final String key;
+		private final ArrayList<Request> requests = new ArrayList<Request>(2);
+		private final Runnable delivery = new Runnable() {
+			@Override
+			public void run() {
+				deliver(Load.this);
+			}
+		};
+
+		private Load(final String key, final Callable<Bitmap> work) {
+			super(work);
+			this.key = key;
+		}
+
+		@Override
+		protected void done() {
+			if (!isCancelled()) {
+				main.post(delivery);
+			}
+		}
+
+	}
+
+	private final ExecutorService executor;
+	private final Handler main = new Handler(Looper.getMainLooper());
+	private final HashMap<String, Load> loads = new HashMap<String, Load>(); // work in flight by key
+	private final SampledBitmapCache cache;
+
+	/**
+	 * Creates a loader with <code>DEFAULT_THREADS</code> threads and no cache.
+	 */
+	public AsyncBitmapLoader() {
+		this(DEFAULT_THREADS, null);
+	}
+
+	/**
+	 * @param threads
+	 *            int number of background threads, at least 1. They run at background priority.
+	 * @param cache
+	 *            SampledBitmapCache to decode files through, null to decode every time.
+	 */
+	public AsyncBitmapLoader(final int threads, final SampledBitmapCache cache) {
+		this.cache = cache;
+		executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			private int count = 0;
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "AsyncBitmapLoader-" + (++count));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Decodes the image like <code>BitmapHelper.getCustomImageSampled(filePath, reqWidth, reqHeight)</code>, through the cache if the loader has one.
+	 *
+	 * @param callback
+	 *            Callback to deliver the bitmap to on the main thread.
+	 * @return Request to cancel the decode with.
+	 */
+	public Request load(final String filePath, final int reqWidth, final int reqHeight, final Callback callback) {
+		return submit(filePath + '|' + reqWidth + 'x' + reqHeight, new Callable<Bitmap>() {
+			@Override
+			public Bitmap call() {
+				if (cache != null) {
+					return cache.get(filePath, reqWidth, reqHeight);
+				}
+				return BitmapHelper.getCustomImageSampled(filePath, reqWidth, reqHeight);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Runs work in the background, e.g. a <code>BitmapHelper</code> transform, unless work for the same key is in flight already, whose result is then
+	 * delivered to this request as well.
+	 *
+	 * @param key
+	 *            String identifying the result of the work, e.g. the source and the transform with its parameters.
+	 * @param work
+	 *            Callable producing the bitmap on a background thread; an exception delivers null.
+	 * @param callback
+	 *            Callback to deliver the bitmap to on the main thread.
+	 * @return Request to cancel the work with.
+	 */
+	public Request submit(final String key, final Callable<Bitmap> work, final Callback callback) {
+		final Request request;
+		Load start = null;
+		synchronized (this) {
+			Load load = loads.get(key);
+			if (load == null) {
+				start = load = new Load(key, work);
+				loads.put(key, load);
+			}
+			request = new Request(load, callback);
+			load.requests.add(request);
+		}
+		if (start != null) {
+			executor.execute(start);
+		}
+		return request;
+	}
+
+	// on the main thread: hands the result of the work to the requests still waiting for it
+	private void deliver(final Load load) {
+		Bitmap bitmap = null;
+		try {
+			bitmap = load.get();
+		} catch (final ExecutionException e) {
+			Log.w("GEITH", "Loading " + load.key + " failed", e.getCause());
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		final Request[] waiting;
+		synchronized (this) {
+			if (loads.get(load.key) == load) {
+				loads.remove(load.key);
+			}
+			waiting = load.requests.toArray(new Request[load.requests.size()]);
+			load.requests.clear();
+		}
+		for (final Request request : waiting) {
+			request.callback.onBitmapLoaded(bitmap);
+		}
+	}
+
+	/**
+	 * Cancels all requests and stops the background threads. The loader cannot be used afterwards.
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			for (final Load load : loads.values()) {
+				for (final Request request : load.requests) {
+					request.cancelled = true;
+				}
+				load.requests.clear();
+				load.cancel(false);
+			}
+			loads.clear();
+		}
+		executor.shutdownNow();
+	}
+
+}
@@ -0,0 +1,187 @@
+package de.geithonline.android.basics.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Output stream that writes to a <code>FileChannel</code> on a background thread, so the writing thread never waits on storage latency. Bytes are collected
+ * in large direct buffers; every full buffer is handed to the writer thread through a bounded queue and comes back empty once it is written. The writing
+ * thread only blocks when all buffers are waiting to be written. All buffers are allocated up front, writing makes no garbage.
+ * <p>
+ * <code>close</code> does not block either: it hands over the last buffer and returns. The writer then forces the file to storage and closes the channel,
+ * which completes the future returned by <code>done</code>. If writing fails, the writer keeps taking buffers without writing them, so the writing thread
+ * cannot hang; the failure is thrown by the next write or close that hands over a buffer, and by the future.
+ */
+public class AsyncChannelOutputStream extends OutputStream {
+
+	/** Default size of a buffer in bytes. */
+	public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+	/** Default number of buffers. */
+	public static final int DEFAULT_BUFFERS = 8;
+
+	private static final ByteBuffer END = ByteBuffer.allocate(0); // handed over by close
+
+	private final FileChannel channel;
+	private final BlockingQueue<ByteBuffer> filled; // buffers to write, in order
+	private final BlockingQueue<ByteBuffer> free; // written buffers, cleared
+	private final FutureTask<Long> writer;
+	private ByteBuffer current; // buffer being filled
+	private volatile IOException failure; // first write error of the writer thread
+	private boolean closed;
+
+	/**
+	 * Creates the stream with the default buffers and starts its writer thread.
+	 *
+	 * @param channel
+	 *            FileChannel to write to, at its position. Closed when the stream is closed.
+	 */
+	public AsyncChannelOutputStream(final FileChannel channel) {
+		this(channel, DEFAULT_BUFFERS, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates the stream and starts its writer thread.
+	 *
+	 * @param channel
+	 *            FileChannel to write to, at its position. Closed when the stream is closed.
+	 * @param buffers
+	 *            int number of buffers, at least 2.
+	 * @param bufferSize
+	 *            int size of a buffer in bytes.
+	 */
+	public AsyncChannelOutputStream(final FileChannel channel, final int buffers, final int bufferSize) {
+		if (channel == null) {
+			throw new IllegalArgumentException("channel is null");
+		}
+		final int count = Math.max(2, buffers);
+		this.channel = channel;
+		filled = new ArrayBlockingQueue<ByteBuffer>(count + 1); // room for all buffers and END
+		free = new ArrayBlockingQueue<ByteBuffer>(count);
+		for (int i = 1; i < count; i++) {
+			free.add(ByteBuffer.allocateDirect(Math.max(1, bufferSize)));
+		}
+		current = ByteBuffer.allocateDirect(Math.max(1, bufferSize));
+		writer = new FutureTask<Long>(new Callable<Long>() {
+			@Override
+			public Long call() throws IOException, InterruptedException {
+				return drain();
+			}
+		});
+		final Thread thread = new Thread(writer, "AsyncChannelOutputStream");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return future completing with the number of bytes written once the stream is closed and the file is forced to storage, or failing with the first
+	 *         write error.
+	 */
+	public Future<Long> done() {
+		return writer;
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		if ((current == null) || !current.hasRemaining()) {
+			handOver();
+		}
+		current.put((byte) b);
+	}
+
+	@Override
+	public void write(final byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if ((current == null) || !current.hasRemaining()) {
+				handOver();
+			}
+			final int n = Math.min(len, current.remaining());
+			current.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Hands the bytes written so far to the writer thread. Does not wait for them to be written.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if ((current != null) && (current.position() > 0)) {
+			handOver();
+		}
+	}
+
+	/**
+	 * Hands the last bytes to the writer thread, which then forces the file to storage and closes the channel. Does not wait for that, see
+	 * <code>done</code>.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			flush();
+		} finally {
+			closed = true;
+			current = null;
+			filled.offer(END); // there is always room for it
+		}
+	}
+
+	// passes the current buffer to the writer and takes an empty one, waiting if there is none
+	private void handOver() throws IOException {
+		if (current == null) {
+			throw new IOException(closed ? "stream closed" : "stream interrupted");
+		}
+		current.flip();
+		filled.offer(current); // there is room for every buffer
+		current = null;
+		try {
+			current = free.take();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	// the writer thread: writes the buffers in order until END, then forces and closes the channel
+	private long drain() throws IOException, InterruptedException {
+		long written = 0;
+		try {
+			ByteBuffer buffer;
+			while ((buffer = filled.take()) != END) {
+				try {
+					if (failure == null) {
+						while (buffer.hasRemaining()) {
+							written += channel.write(buffer);
+						}
+					}
+				} catch (final IOException e) {
+					failure = e;
+				}
+				buffer.clear();
+				free.put(buffer);
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		return written;
+	}
+
+}
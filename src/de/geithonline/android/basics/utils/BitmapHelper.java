@@ -10,6 +10,7 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
@@ -17,6 +18,7 @@ import android.graphics.PorterDuff.Mode;
 import android.graphics.PorterDuffColorFilter;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
@@ -51,6 +53,52 @@ public class BitmapHelper {
 		return rotated;
 	}
 
+	/**
+	 * Like <code>rotate(Bitmap, float)</code>, into a bitmap from the pool.
+	 */
+	public static Bitmap rotate(final Bitmap bitmap, final float winkel, final BitmapPool pool) {
+		final RectF bounds = new RectF();
+		rotation(bitmap, winkel, bounds);
+		return rotate(bitmap, winkel, pool.get(Math.round(bounds.width()), Math.round(bounds.height()), Config.ARGB_8888));
+	}
+
+	/**
+	 * Like <code>rotate(Bitmap, float)</code>, into out. The rotated bitmap is drawn at the top left corner of out, which is cleared first.
+	 *
+	 * @param out
+	 *            mutable Bitmap as large as the bounds of the rotated bitmap.
+	 * @return out
+	 */
+	public static Bitmap rotate(final Bitmap bitmap, final float winkel, final Bitmap out) {
+		final Matrix matrix = rotation(bitmap, winkel, new RectF());
+		final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		paint.setAntiAlias(!matrix.rectStaysRect());
+		return drawInto(out, bitmap, matrix, paint);
+	}
+
+	// rotation by winkel around the top left corner, moved so the bounds of the rotated bitmap start at 0, 0
+	private static Matrix rotation(final Bitmap bitmap, final float winkel, final RectF bounds) {
+		final Matrix matrix = new Matrix();
+		matrix.postRotate(winkel);
+		bounds.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+		matrix.mapRect(bounds);
+		matrix.postTranslate(-bounds.left, -bounds.top);
+		return matrix;
+	}
+
+	// clears out and draws the bitmap into it
+	private static Bitmap drawInto(final Bitmap out, final Bitmap bitmap, final Matrix matrix, final Paint paint) {
+		out.eraseColor(Color.TRANSPARENT);
+		final Canvas canvas = new Canvas(out);
+		canvas.drawBitmap(bitmap, matrix, paint);
+		return out;
+	}
+
+	// the config of a copy of the bitmap
+	private static Config configOf(final Bitmap bitmap) {
+		return (bitmap.getConfig() != null) ? bitmap.getConfig() : Config.ARGB_8888;
+	}
+
 	public static Bitmap flip(final Bitmap src) {
 		final Matrix m = new Matrix();
 		m.preScale(1, -1);
@@ -58,11 +106,52 @@ public class BitmapHelper {
 		return dst;
 	}
 
+	/**
+	 * Like <code>flip(Bitmap)</code>, into a bitmap from the pool.
+	 */
+	public static Bitmap flip(final Bitmap src, final BitmapPool pool) {
+		return flip(src, pool.get(src.getWidth(), src.getHeight(), configOf(src)));
+	}
+
+	/**
+	 * Like <code>flip(Bitmap)</code>, into out, which is cleared first.
+	 *
+	 * @param out
+	 *            mutable Bitmap of the size of src.
+	 * @return out
+	 */
+	public static Bitmap flip(final Bitmap src, final Bitmap out) {
+		final Matrix m = new Matrix();
+		m.setScale(1, -1);
+		m.postTranslate(0, src.getHeight());
+		return drawInto(out, src, m, null);
+	}
+
 	public static Bitmap crop(final Bitmap sourceBitmap, final Rect rect) {
 		final Bitmap cropped = Bitmap.createBitmap(sourceBitmap, rect.left, rect.top, rect.width(), rect.height());
 		return cropped;
 	}
 
+	/**
+	 * Like <code>crop(Bitmap, Rect)</code>, into a bitmap from the pool.
+	 */
+	public static Bitmap crop(final Bitmap sourceBitmap, final Rect rect, final BitmapPool pool) {
+		return crop(sourceBitmap, rect, pool.get(rect.width(), rect.height(), configOf(sourceBitmap)));
+	}
+
+	/**
+	 * Like <code>crop(Bitmap, Rect)</code>, into out, which is cleared first.
+	 *
+	 * @param out
+	 *            mutable Bitmap of the size of rect.
+	 * @return out
+	 */
+	public static Bitmap crop(final Bitmap sourceBitmap, final Rect rect, final Bitmap out) {
+		final Matrix m = new Matrix();
+		m.setTranslate(-rect.left, -rect.top);
+		return drawInto(out, sourceBitmap, m, null);
+	}
+
 	public static Drawable resizeToIcon(final Bitmap bitmap, final int width, final int height) {
 		final Bitmap b = Bitmap.createScaledBitmap(bitmap, width, height, true);
 		final Drawable d = new BitmapDrawable(Resources.getSystem(), b);
@@ -89,6 +178,27 @@ public class BitmapHelper {
 		return a;
 	}
 
+	/**
+	 * Like <code>convertToAlphaMask(Bitmap)</code>, into a bitmap from the pool.
+	 */
+	public static Bitmap convertToAlphaMask(final Bitmap b, final BitmapPool pool) {
+		return convertToAlphaMask(b, pool.get(b.getWidth(), b.getHeight(), Bitmap.Config.ALPHA_8));
+	}
+
+	/**
+	 * Like <code>convertToAlphaMask(Bitmap)</code>, into out, which is cleared first.
+	 *
+	 * @param out
+	 *            mutable ALPHA_8 Bitmap of the size of b.
+	 * @return out
+	 */
+	public static Bitmap convertToAlphaMask(final Bitmap b, final Bitmap out) {
+		out.eraseColor(Color.TRANSPARENT);
+		final Canvas c = new Canvas(out);
+		c.drawBitmap(b, 0.0f, 0.0f, null);
+		return out;
+	}
+
 	/**
 	 * @param inBitmap
 	 *            needs to be recycled outside!!!
@@ -111,6 +221,32 @@ public class BitmapHelper {
 		return outBitmap;
 	}
 
+	/**
+	 * Like <code>getColorFilteredBitmap(Bitmap, int, int, int, int)</code>, into a bitmap from the pool.
+	 */
+	public static Bitmap getColorFilteredBitmap(final Bitmap inBitmap, final int brightness, final int contrast, final int saturation, final int hue,
+			final BitmapPool pool) {
+		final Bitmap outBitmap = pool.get(inBitmap.getWidth(), inBitmap.getHeight(), Bitmap.Config.ARGB_8888);
+		return getColorFilteredBitmap(inBitmap, brightness, contrast, saturation, hue, outBitmap);
+	}
+
+	/**
+	 * Like <code>getColorFilteredBitmap(Bitmap, int, int, int, int)</code>, into outBitmap, which is cleared first.
+	 *
+	 * @param outBitmap
+	 *            mutable Bitmap of the size of inBitmap.
+	 * @return outBitmap
+	 */
+	public static Bitmap getColorFilteredBitmap(final Bitmap inBitmap, final int brightness, final int contrast, final int saturation, final int hue,
+			final Bitmap outBitmap) {
+		outBitmap.eraseColor(Color.TRANSPARENT);
+		final Canvas c = new Canvas(outBitmap);
+		final Paint paint = new Paint();
+		paint.setColorFilter(ColorFilterGenerator.adjustColor(brightness, contrast, saturation, hue));
+		c.drawBitmap(inBitmap, 0, 0, paint);
+		return outBitmap;
+	}
+
 	public static Bitmap getMaskedBitmap(final Bitmap source, final Bitmap mask) {
 		final BitmapFactory.Options options = new BitmapFactory.Options();
 		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
@@ -150,6 +286,28 @@ public class BitmapHelper {
 		return bitmapResult;
 	}
 
+	/**
+	 * Like <code>tintBitmap(Bitmap, Paint, int)</code>, into a bitmap from the pool.
+	 */
+	public static Bitmap tintBitmap(final Bitmap bitmap, final Paint paint, final int color, final BitmapPool pool) {
+		return tintBitmap(bitmap, paint, color, pool.get(bitmap.getWidth(), bitmap.getHeight(), Config.ARGB_8888));
+	}
+
+	/**
+	 * Like <code>tintBitmap(Bitmap, Paint, int)</code>, into bitmapResult, which is cleared first.
+	 *
+	 * @param bitmapResult
+	 *            mutable Bitmap of the size of bitmap.
+	 * @return bitmapResult
+	 */
+	public static Bitmap tintBitmap(final Bitmap bitmap, final Paint paint, final int color, final Bitmap bitmapResult) {
+		paint.setColorFilter(new PorterDuffColorFilter(color, Mode.SRC_IN));
+		bitmapResult.eraseColor(Color.TRANSPARENT);
+		final Canvas canvas = new Canvas(bitmapResult);
+		canvas.drawBitmap(bitmap, 0, 0, paint);
+		return bitmapResult;
+	}
+
 	public static Bitmap tintBitmap(final Bitmap bitmap, final int color) {
 		final Paint paint = new Paint();
 		return tintBitmap(bitmap, paint, color);
@@ -171,18 +329,59 @@ public class BitmapHelper {
 	 * @return Bitmap or null...
 	 */
 	public static Bitmap getCustomImageSampled(final String filePath, final int reqWidth, final int reqHeight) {
+		return getCustomImageSampled(filePath, reqWidth, reqHeight, null);
+	}
+
+	/**
+	 * Like <code>getCustomImageSampled(String, int, int)</code>, decoding into the memory of a bitmap from the pool if it holds one large enough. The
+	 * returned bitmap is mutable, so it can go back into the pool.
+	 *
+	 * @param pool
+	 *            BitmapPool to take the memory from, null to allocate.
+	 * @return Bitmap or null...
+	 */
+	public static Bitmap getCustomImageSampled(final String filePath, final int reqWidth, final int reqHeight, final BitmapPool pool) {
+		return decodeSampled(filePath, reqWidth, reqHeight, pool, new byte[32 * 1024]);
+	}
+
+	/**
+	 * Decodes like <code>getCustomImageSampled</code>, using tempStorage as <code>inTempStorage</code>, which must not be used by another decode at the same
+	 * time.
+	 */
+	static Bitmap decodeSampled(final String filePath, final int reqWidth, final int reqHeight, final BitmapPool pool, final byte[] tempStorage) {
 		if (!filePath.equals("aaa")) {
 			final BitmapFactory.Options options = new BitmapFactory.Options();
 			options.inPreferredConfig = Bitmap.Config.ARGB_8888;
 			options.inDither = false; // Disable Dithering mode
-			options.inTempStorage = new byte[32 * 1024];
+			options.inTempStorage = tempStorage;
 			options.inJustDecodeBounds = true;
 			BitmapFactory.decodeFile(filePath, options);
 			// Calculate inSampleSize
 			options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
 			// Decode bitmap with inSampleSize set
 			options.inJustDecodeBounds = false;
-			final Bitmap b = BitmapFactory.decodeFile(filePath, options);
+			if ((pool != null) && (options.outWidth > 0)) {
+				// decoders round the sampled size either way, room for rounding up
+				final int sampledWidth = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+				final int sampledHeight = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+				options.inMutable = true;
+				options.inBitmap = pool.getReusable(sampledWidth * sampledHeight * 4);
+			}
+			Bitmap b;
+			try {
+				b = BitmapFactory.decodeFile(filePath, options);
+			} catch (final IllegalArgumentException e) {
+				if (options.inBitmap == null) {
+					throw e;
+				}
+				// the pooled bitmap cannot be decoded into after all
+				pool.put(options.inBitmap);
+				options.inBitmap = null;
+				b = BitmapFactory.decodeFile(filePath, options);
+			}
+			if ((b == null) && (options.inBitmap != null)) {
+				pool.put(options.inBitmap);
+			}
 			return b;
 		}
 		return null;
@@ -217,6 +416,24 @@ public class BitmapHelper {
 		return bitmapResult;
 	}
 
+	/**
+	 * Like <code>tintImage(Bitmap, Paint, int)</code>, into a bitmap from the pool.
+	 */
+	public static Bitmap tintImage(final Bitmap bitmap, final Paint paint, final int color, final BitmapPool pool) {
+		return tintBitmap(bitmap, paint, color, pool);
+	}
+
+	/**
+	 * Like <code>tintImage(Bitmap, Paint, int)</code>, into bitmapResult, which is cleared first.
+	 *
+	 * @param bitmapResult
+	 *            mutable Bitmap of the size of bitmap.
+	 * @return bitmapResult
+	 */
+	public static Bitmap tintImage(final Bitmap bitmap, final Paint paint, final int color, final Bitmap bitmapResult) {
+		return tintBitmap(bitmap, paint, color, bitmapResult);
+	}
+
 	public static Bitmap tintImage(final Bitmap bitmap, final int color) {
 		final Paint paint = new Paint();
 		paint.setColorFilter(new PorterDuffColorFilter(color, Mode.SRC_IN));
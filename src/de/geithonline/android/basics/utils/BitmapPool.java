@@ -0,0 +1,198 @@
+package de.geithonline.android.basics.utils;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.util.LongSparseArray;
+
+/**
+ * Pool of mutable bitmaps, so loops that produce a bitmap per call, like the <code>BitmapHelper</code> operations, can reuse the memory of bitmaps they are
+ * done with instead of allocating new ones. Bitmaps are put back with <code>put</code> and handed out again by <code>get</code> for the same size and config,
+ * or by <code>getReusable</code> as <code>inBitmap</code> for decoding. The pool holds at most <code>maxBytes</code>; when a put exceeds it, the bitmaps put
+ * back the longest time ago are recycled first. All methods are thread safe.
+ */
+public class BitmapPool {
+
+	/** Default memory cap in bytes. */
+	public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+	private final LongSparseArray<ArrayDeque<Bitmap>> free = new LongSparseArray<ArrayDeque<Bitmap>>(); // pooled bitmaps by size and config
+	private final LinkedHashSet<Bitmap> lru = new LinkedHashSet<Bitmap>(); // all pooled bitmaps, least recently put first
+	private long maxBytes;
+	private long bytes; // allocation bytes of the pooled bitmaps
+	private int hits;
+	private int misses;
+
+	/**
+	 * Creates a pool of at most <code>DEFAULT_MAX_BYTES</code>.
+	 */
+	public BitmapPool() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param maxBytes
+	 *            long memory cap of the pooled bitmaps in bytes.
+	 */
+	public BitmapPool(final long maxBytes) {
+		this.maxBytes = Math.max(0, maxBytes);
+	}
+
+	private static long key(final int width, final int height, final Config config) {
+		return ((long) config.ordinal() << 48) | ((long) width << 24) | height;
+	}
+
+	/**
+	 * Returns a mutable bitmap of that size and config, from the pool if it holds one, else a new one. The content of a pooled bitmap is what it was put back
+	 * with; erase it if it matters.
+	 *
+	 * @param width
+	 *            int width in pixels.
+	 * @param height
+	 *            int height in pixels.
+	 * @param config
+	 *            Config of the bitmap.
+	 * @return Bitmap owned by the caller, to be put back once done with.
+	 */
+	public Bitmap get(final int width, final int height, final Config config) {
+		synchronized (this) {
+			final ArrayDeque<Bitmap> same = free.get(key(width, height, config));
+			if ((same != null) && !same.isEmpty()) {
+				final Bitmap bitmap = same.pollLast();
+				lru.remove(bitmap);
+				bytes -= bitmap.getAllocationByteCount();
+				hits++;
+				return bitmap;
+			}
+			misses++;
+		}
+		return Bitmap.createBitmap(width, height, config);
+	}
+
+	/**
+	 * Returns the smallest pooled bitmap whose memory holds at least byteCount bytes, to decode into through <code>BitmapFactory.Options.inBitmap</code>,
+	 * which changes its size and config as needed.
+	 *
+	 * @param byteCount
+	 *            int bytes the decoded bitmap needs.
+	 * @return Bitmap owned by the caller, or null if the pool holds none large enough.
+	 */
+	public synchronized Bitmap getReusable(final int byteCount) {
+		Bitmap best = null;
+		for (final Bitmap bitmap : lru) {
+			final int size = bitmap.getAllocationByteCount();
+			if ((size >= byteCount) && ((best == null) || (size < best.getAllocationByteCount()))) {
+				best = bitmap;
+			}
+		}
+		if (best == null) {
+			misses++;
+			return null;
+		}
+		remove(best);
+		hits++;
+		return best;
+	}
+
+	/**
+	 * Puts a bitmap the caller is done with back into the pool. Immutable and recycled bitmaps are ignored, a bitmap larger than the cap is recycled. The
+	 * bitmap must not be used after this.
+	 *
+	 * @param bitmap
+	 *            Bitmap to reuse, may be null.
+	 */
+	public synchronized void put(final Bitmap bitmap) {
+		if ((bitmap == null) || bitmap.isRecycled() || !bitmap.isMutable() || (bitmap.getConfig() == null) || lru.contains(bitmap)) {
+			return;
+		}
+		final int size = bitmap.getAllocationByteCount();
+		if (size > maxBytes) {
+			bitmap.recycle();
+			return;
+		}
+		final long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+		ArrayDeque<Bitmap> same = free.get(key);
+		if (same == null) {
+			same = new ArrayDeque<Bitmap>();
+			free.put(key, same);
+		}
+		same.addLast(bitmap);
+		lru.add(bitmap);
+		bytes += size;
+		trimToSize(maxBytes);
+	}
+
+	// takes a bitmap out of the pool
+	private void remove(final Bitmap bitmap) {
+		lru.remove(bitmap);
+		free.get(key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig())).remove(bitmap);
+		bytes -= bitmap.getAllocationByteCount();
+	}
+
+	/**
+	 * Recycles the bitmaps put back the longest time ago until the pool holds at most maxBytes.
+	 *
+	 * @param maxBytes
+	 *            long bytes to keep.
+	 */
+	public synchronized void trimToSize(final long maxBytes) {
+		final Iterator<Bitmap> oldest = lru.iterator();
+		while ((bytes > maxBytes) && oldest.hasNext()) {
+			final Bitmap bitmap = oldest.next();
+			oldest.remove();
+			free.get(key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig())).remove(bitmap);
+			bytes -= bitmap.getAllocationByteCount();
+			bitmap.recycle();
+		}
+	}
+
+	/**
+	 * Changes the memory cap, recycling pooled bitmaps if the pool holds more.
+	 *
+	 * @param maxBytes
+	 *            long memory cap in bytes.
+	 */
+	public synchronized void setMaxSize(final long maxBytes) {
+		this.maxBytes = Math.max(0, maxBytes);
+		trimToSize(this.maxBytes);
+	}
+
+	/**
+	 * Recycles all pooled bitmaps, e.g. when the system is low on memory.
+	 */
+	public void clear() {
+		trimToSize(0);
+	}
+
+	/**
+	 * @return allocation bytes of the pooled bitmaps.
+	 */
+	public synchronized long getSize() {
+		return bytes;
+	}
+
+	/**
+	 * @return memory cap in bytes.
+	 */
+	public synchronized long getMaxSize() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return requests served from the pool.
+	 */
+	public synchronized int getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * @return requests the pool held no bitmap for.
+	 */
+	public synchronized int getMissCount() {
+		return misses;
+	}
+
+}
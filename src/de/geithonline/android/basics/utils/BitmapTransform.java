@@ -0,0 +1,250 @@
+package de.geithonline.android.basics.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * Chain of the <code>BitmapHelper</code> transforms crop, rotate, flip and scale, rendered in a single pass. Every step only updates one matrix from the
+ * source to the output and the size of the output, so no intermediate bitmap is made; <code>render</code> then draws the source once into the output, a new
+ * bitmap or one from a pool. Each step gives the size and orientation the helper of the same name would give the bitmap at that point of the chain.
+ * <p>
+ * A source decoded at a lower resolution can be rendered as well. <code>getSourceRect</code> tells which part of the source is visible in the output: just
+ * that region can be decoded, e.g. with <code>BitmapRegionDecoder</code> and an <code>inSampleSize</code>, and rendered with
+ * <code>render(region, regionInSource, ...)</code>.
+ *
+ * <pre>
+ * Bitmap preview = new BitmapTransform(photo).crop(rect).rotate(90).flip().scaleToWidth(256).render(photo, pool);
+ * </pre>
+ */
+public class BitmapTransform {
+
+	private final int sourceWidth;
+	private final int sourceHeight;
+	private final Matrix matrix = new Matrix(); // source pixels to output pixels
+	private final RectF bounds = new RectF(); // scratch space
+	private int width; // output size after the steps so far
+	private int height;
+
+	/**
+	 * Starts an empty chain for the bitmap.
+	 */
+	public BitmapTransform(final Bitmap source) {
+		this(source.getWidth(), source.getHeight());
+	}
+
+	/**
+	 * Starts an empty chain for a source of that size, e.g. known from decoding just the bounds.
+	 */
+	public BitmapTransform(final int sourceWidth, final int sourceHeight) {
+		this.sourceWidth = sourceWidth;
+		this.sourceHeight = sourceHeight;
+		width = sourceWidth;
+		height = sourceHeight;
+	}
+
+	/**
+	 * Like <code>BitmapHelper.crop</code>: keeps the rect of the output so far.
+	 *
+	 * @param rect
+	 *            Rect within the output so far.
+	 * @return this
+	 */
+	public BitmapTransform crop(final Rect rect) {
+		if ((rect.left < 0) || (rect.top < 0) || (rect.right > width) || (rect.bottom > height) || rect.isEmpty()) {
+			throw new IllegalArgumentException("crop " + rect + " outside of " + width + "x" + height);
+		}
+		matrix.postTranslate(-rect.left, -rect.top);
+		width = rect.width();
+		height = rect.height();
+		return this;
+	}
+
+	/**
+	 * Like <code>BitmapHelper.rotate</code>: rotates clockwise by winkel degrees, the output grows to the bounds of the rotated image.
+	 *
+	 * @return this
+	 */
+	public BitmapTransform rotate(final float winkel) {
+		bounds.set(0, 0, width, height);
+		matrix.postRotate(winkel);
+		final Matrix rotation = new Matrix();
+		rotation.setRotate(winkel);
+		rotation.mapRect(bounds);
+		matrix.postTranslate(-bounds.left, -bounds.top);
+		width = Math.round(bounds.width());
+		height = Math.round(bounds.height());
+		return this;
+	}
+
+	/**
+	 * Like <code>BitmapHelper.flip</code>: flips upside down.
+	 *
+	 * @return this
+	 */
+	public BitmapTransform flip() {
+		matrix.postScale(1, -1);
+		matrix.postTranslate(0, height);
+		return this;
+	}
+
+	/**
+	 * Like <code>BitmapHelper.resizeToIcon</code>: scales to that size.
+	 *
+	 * @return this
+	 */
+	public BitmapTransform scale(final int w, final int h) {
+		matrix.postScale((float) w / width, (float) h / height);
+		width = w;
+		height = h;
+		return this;
+	}
+
+	/**
+	 * Like <code>BitmapHelper.scallToWidth</code>: scales to that width, keeping the aspect ratio.
+	 *
+	 * @return this
+	 */
+	public BitmapTransform scaleToWidth(final int w) {
+		return scale(w, height * w / width);
+	}
+
+	/**
+	 * @return width of the output.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return height of the output.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return copy of the matrix from the source pixels to the output pixels.
+	 */
+	public Matrix getMatrix() {
+		return new Matrix(matrix);
+	}
+
+	/**
+	 * @return part of the source that is visible in the output, rounded out to whole pixels.
+	 */
+	public Rect getSourceRect() {
+		final Matrix inverse = new Matrix();
+		final Rect rect = new Rect(0, 0, sourceWidth, sourceHeight);
+		if (matrix.invert(inverse)) {
+			final RectF visible = new RectF(0, 0, width, height);
+			inverse.mapRect(visible);
+			final Rect out = new Rect();
+			visible.roundOut(out);
+			if (!rect.intersect(out)) {
+				rect.setEmpty();
+			}
+		}
+		return rect;
+	}
+
+	/**
+	 * Renders the source into a new bitmap.
+	 *
+	 * @param source
+	 *            Bitmap to transform, of the size given to the chain or a downscaled version of it.
+	 * @return Bitmap of the output size.
+	 */
+	public Bitmap render(final Bitmap source) {
+		return render(source, Bitmap.createBitmap(width, height, configFor(source)));
+	}
+
+	/**
+	 * Renders the source into a bitmap from the pool.
+	 *
+	 * @param source
+	 *            Bitmap to transform, of the size given to the chain or a downscaled version of it.
+	 * @return Bitmap of the output size, to be put back into the pool once done with.
+	 */
+	public Bitmap render(final Bitmap source, final BitmapPool pool) {
+		return render(source, pool.get(width, height, configFor(source)));
+	}
+
+	/**
+	 * Renders the source into out, which is cleared first.
+	 *
+	 * @param source
+	 *            Bitmap to transform, of the size given to the chain or a downscaled version of it.
+	 * @param out
+	 *            mutable Bitmap of the output size.
+	 * @return out
+	 */
+	public Bitmap render(final Bitmap source, final Bitmap out) {
+		return render(source, new Rect(0, 0, sourceWidth, sourceHeight), out);
+	}
+
+	/**
+	 * Renders a region of the source into a new bitmap.
+	 *
+	 * @param region
+	 *            Bitmap holding just the region of the source, at full or a lower resolution.
+	 * @param regionInSource
+	 *            Rect of the region in the source, e.g. <code>getSourceRect()</code>.
+	 * @return Bitmap of the output size.
+	 */
+	public Bitmap render(final Bitmap region, final Rect regionInSource) {
+		return render(region, regionInSource, Bitmap.createBitmap(width, height, configFor(region)));
+	}
+
+	/**
+	 * Renders a region of the source into a bitmap from the pool.
+	 *
+	 * @param region
+	 *            Bitmap holding just the region of the source, at full or a lower resolution.
+	 * @param regionInSource
+	 *            Rect of the region in the source, e.g. <code>getSourceRect()</code>.
+	 * @return Bitmap of the output size, to be put back into the pool once done with.
+	 */
+	public Bitmap render(final Bitmap region, final Rect regionInSource, final BitmapPool pool) {
+		return render(region, regionInSource, pool.get(width, height, configFor(region)));
+	}
+
+	/**
+	 * Renders a region of the source into out, which is cleared first; output pixels outside of the region stay cleared.
+	 *
+	 * @param region
+	 *            Bitmap holding just the region of the source, at full or a lower resolution.
+	 * @param regionInSource
+	 *            Rect of the region in the source, e.g. <code>getSourceRect()</code>.
+	 * @param out
+	 *            mutable Bitmap of the output size.
+	 * @return out
+	 */
+	public Bitmap render(final Bitmap region, final Rect regionInSource, final Bitmap out) {
+		final Matrix m = new Matrix(matrix);
+		m.preTranslate(regionInSource.left, regionInSource.top);
+		if ((region.getWidth() != regionInSource.width()) || (region.getHeight() != regionInSource.height())) {
+			m.preScale((float) regionInSource.width() / region.getWidth(), (float) regionInSource.height() / region.getHeight());
+		}
+		final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		paint.setAntiAlias(!m.rectStaysRect());
+		out.eraseColor(Color.TRANSPARENT);
+		final Canvas canvas = new Canvas(out);
+		canvas.drawBitmap(region, m, paint);
+		return out;
+	}
+
+	// the config of the output: the one of the source, unless a rotation uncovers transparent corners
+	private Config configFor(final Bitmap source) {
+		if (!matrix.rectStaysRect() || (source.getConfig() == null)) {
+			return Config.ARGB_8888;
+		}
+		return source.getConfig();
+	}
+
+}
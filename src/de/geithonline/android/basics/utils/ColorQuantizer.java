@@ -0,0 +1,55 @@
+package de.geithonline.android.basics.utils;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Reduces the colors of a frame to a palette of at most 256 entries and maps pixels to it. Pixels are given as BGR byte triplets, the way
+ * <code>AnimatedGifEncoder</code> extracts them. An instance is reused for frame after frame, but only used by one thread at a time; once the palette is built
+ * the mapping methods may be called from several threads.
+ */
+public interface ColorQuantizer {
+
+	/**
+	 * Sets the pixels to build the next palette from.
+	 *
+	 * @param pixels
+	 *            BGR byte array.
+	 * @param len
+	 *            int number of bytes used, a multiple of 3.
+	 * @param sample
+	 *            int sampling factor, 1 = look at every pixel, 10 = every tenth.
+	 */
+	public void reset(byte[] pixels, int len, int sample);
+
+	/**
+	 * Builds the palette.
+	 *
+	 * @param pool
+	 *            ForkJoinPool to train on, null if the caller thread is to be used. Quantizers that do not train in parallel ignore it.
+	 * @param parallelism
+	 *            int number of tasks to split training into.
+	 * @return 256 BGR palette entries (768 bytes), unused ones black. The caller may change the array; it is reused by the next call.
+	 */
+	public byte[] process(ForkJoinPool pool, int parallelism);
+
+	/**
+	 * @return index of the palette entry closest to the BGR color.
+	 */
+	public int map(int b, int g, int r);
+
+	/**
+	 * Same as <code>map(b, g, r)</code>, starting the search at a palette index that is known to be close.
+	 */
+	public int map(int b, int g, int r, int hint);
+
+	/**
+	 * Sets up the lookup table used by <code>lookup</code>. To be called after <code>process</code>.
+	 */
+	public void prepareCache();
+
+	/**
+	 * @return index of the palette entry closest to the center of the 32x32x32 table cell of the BGR color, searched when the cell is first hit.
+	 */
+	public int lookup(int b, int g, int r);
+
+}
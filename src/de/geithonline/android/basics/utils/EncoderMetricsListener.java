@@ -0,0 +1,30 @@
+package de.geithonline.android.basics.utils;
+
+/**
+ * Receives the cost of every frame written by an <code>AnimatedGifEncoder</code>, see <code>setMetricsListener</code>. Called on the thread that writes the
+ * frames, which is the thread adding them, right after a frame is written; stages that ran on worker threads are reported with the time they took there.
+ * Frames coalesced with a duplicate are not reported, they cost only their extraction.
+ */
+public interface EncoderMetricsListener {
+
+	/**
+	 * @param frame
+	 *            int number of the frame in the GIF, starting at 0.
+	 * @param extractNanos
+	 *            long nanoseconds spent getting the pixels of the frame into the encoder.
+	 * @param trainNanos
+	 *            long nanoseconds spent building the palette; for a global palette reported with the first frame mapped to it.
+	 * @param mapNanos
+	 *            long nanoseconds spent mapping the pixels to the palette, including dithering.
+	 * @param lzwNanos
+	 *            long nanoseconds spent LZW compressing the indexed pixels.
+	 * @param writeNanos
+	 *            long nanoseconds spent writing the frame to the output stream.
+	 * @param bytes
+	 *            long bytes written for the frame, including the stream header for the first one.
+	 * @param paletteEntries
+	 *            int palette entries the frame uses.
+	 */
+	void frameWritten(int frame, long extractNanos, long trainNanos, long mapNanos, long lzwNanos, long writeNanos, long bytes, int paletteEntries);
+
+}
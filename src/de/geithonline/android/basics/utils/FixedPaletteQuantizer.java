@@ -0,0 +1,87 @@
+package de.geithonline.android.basics.utils;
+
+/**
+ * Quantizer for a palette given by the caller, for content generated from known colors. Nothing is learned, <code>process</code> hands out the same palette
+ * for every frame. The palette colors are kept in a small hash table, so a pixel of exactly one of them maps with a single probe. Other colors are searched
+ * like in every <code>AbstractColorQuantizer</code>, or looked up in its 32x32x32 table, which stays filled from frame to frame as long as
+ * <code>process</code> is not invoked again.
+ */
+public class FixedPaletteQuantizer extends AbstractColorQuantizer {
+
+	private static final int SLOTS = 512; // hash table size, at most half full
+
+	private final int[] colors; // RGB colors, 0xRRGGBB
+	private final int[] keys = new int[SLOTS]; // 0x1000000 | RGB, 0 = empty slot
+	private final short[] entries = new short[SLOTS]; // palette index of each key
+
+	/**
+	 * @param colors
+	 *            int array of 1 to 256 colors, 0xRRGGBB; alpha is ignored. Only the first of equal colors is mapped to.
+	 */
+	public FixedPaletteQuantizer(final int[] colors) {
+		if ((colors == null) || (colors.length == 0) || (colors.length > 256)) {
+			throw new IllegalArgumentException("1 to 256 colors expected");
+		}
+		this.colors = new int[colors.length];
+		for (int i = 0; i < colors.length; i++) {
+			final int rgb = colors[i] & 0xffffff;
+			this.colors[i] = rgb;
+			int slot = slot(rgb);
+			while ((keys[slot] != 0) && (keys[slot] != (0x1000000 | rgb))) {
+				slot = (slot + 1) & (SLOTS - 1);
+			}
+			if (keys[slot] == 0) {
+				keys[slot] = 0x1000000 | rgb;
+				entries[slot] = (short) i;
+			}
+		}
+	}
+
+	private static int slot(final int rgb) {
+		return (rgb * 0x9E3779B1) >>> 23;
+	}
+
+	// palette index of exactly that color, -1 if it is not in the palette
+	private int exact(final int b, final int g, final int r) {
+		final int key = 0x1000000 | (r << 16) | (g << 8) | b;
+		int slot = slot(key & 0xffffff);
+		int k;
+		while ((k = keys[slot]) != 0) {
+			if (k == key) {
+				return entries[slot];
+			}
+			slot = (slot + 1) & (SLOTS - 1);
+		}
+		return -1;
+	}
+
+	@Override
+	protected int buildPalette(final byte[] palette) {
+		for (int i = 0; i < colors.length; i++) {
+			final int rgb = colors[i];
+			palette[i * 3] = (byte) rgb;
+			palette[i * 3 + 1] = (byte) (rgb >> 8);
+			palette[i * 3 + 2] = (byte) (rgb >> 16);
+		}
+		return colors.length;
+	}
+
+	@Override
+	public int map(final int b, final int g, final int r) {
+		final int index = exact(b, g, r);
+		return (index >= 0) ? index : super.map(b, g, r);
+	}
+
+	@Override
+	public int map(final int b, final int g, final int r, final int hint) {
+		final int index = exact(b, g, r);
+		return (index >= 0) ? index : super.map(b, g, r, hint);
+	}
+
+	@Override
+	public int lookup(final int b, final int g, final int r) {
+		final int index = exact(b, g, r);
+		return (index >= 0) ? index : super.lookup(b, g, r);
+	}
+
+}
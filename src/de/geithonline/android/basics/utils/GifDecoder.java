@@ -0,0 +1,631 @@
+package de.geithonline.android.basics.utils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Streaming GIF decoder, the counterpart of <code>AnimatedGifEncoder</code>. Frames are parsed one at a time as they are requested and composed into an ARGB
+ * canvas supplied by the caller, so only one frame is held in memory however long the animation is. Disposal methods, local color tables, transparency and
+ * interlacing are handled.
+ *
+ * <pre>
+ * final GifDecoder decoder = new GifDecoder();
+ * if (decoder.read(in) == GifDecoder.STATUS_OK) {
+ * 	final int[] canvas = new int[decoder.getWidth() * decoder.getHeight()];
+ * 	final Iterator&lt;int[]&gt; frames = decoder.frames(canvas);
+ * 	while (frames.hasNext()) {
+ * 		show(frames.next(), decoder.getDelay());
+ * 	}
+ * }
+ * </pre>
+ */
+public class GifDecoder {
+
+	/** No error so far. */
+	public static final int STATUS_OK = 0;
+	/** The stream is no GIF, or a block could not be read. */
+	public static final int STATUS_FORMAT_ERROR = 1;
+	/** The stream could not be opened. */
+	public static final int STATUS_OPEN_ERROR = 2;
+
+	protected static final int MAX_STACK_SIZE = 4096; // max decoder pixel stack size
+
+	protected InputStream in;
+	protected int status;
+
+	protected int width; // full image width
+	protected int height; // full image height
+	protected int[] gct = new int[256]; // global color table
+	protected int gctSize; // entries in gct, 0 = none
+	protected int bgIndex; // background color index
+	protected int bgColor; // background color
+	protected int loopCount = 1; // iterations; 0 = repeat forever
+	protected int[] lct = new int[256]; // local color table
+
+	protected int ix, iy, iw, ih; // current image rectangle
+	protected boolean interlace;
+
+	protected final byte[] block = new byte[256]; // current data block
+	protected int blockSize = 0; // block size
+
+	// graphic control extension of the next frame
+	protected int dispose = 0; // 0=no action; 1=leave in place; 2=restore to bg; 3=restore to prev
+	protected boolean transparency = false; // use transparent color
+	protected int transIndex; // transparent color index
+	protected int delay = 0; // delay in milliseconds
+
+	// the frame before, for its disposal
+	protected int lastDispose = 0;
+	protected int lrx, lry, lrw, lrh; // last image rectangle
+	protected int[] saved; // canvas before the last frame was drawn, for disposal 3
+
+	// LZW decoder working arrays, reused for all frames
+	protected final short[] prefix = new short[MAX_STACK_SIZE];
+	protected final byte[] suffix = new byte[MAX_STACK_SIZE];
+	protected final byte[] pixelStack = new byte[MAX_STACK_SIZE + 1];
+	protected byte[] pixels; // indexed pixels of the current frame
+
+	protected int frameCount; // frames decoded so far
+
+	/**
+	 * Reads the header of a GIF from the stream. The frames are read later by <code>nextFrame</code> or the iterator of <code>frames</code>. The stream is
+	 * not closed.
+	 *
+	 * @param is
+	 *            InputStream containing GIF file.
+	 * @return read status code (0 = no errors).
+	 */
+	public int read(final InputStream is) {
+		init();
+		if (is == null) {
+			return status = STATUS_OPEN_ERROR;
+		}
+		in = (is instanceof BufferedInputStream) ? is : new BufferedInputStream(is);
+		try {
+			readHeader();
+		} catch (final IOException e) {
+			status = STATUS_FORMAT_ERROR;
+		}
+		return status;
+	}
+
+	/**
+	 * Decodes the next frame into the canvas, after disposing of the previous frame as it asked for. The same canvas has to be passed for every frame of an
+	 * animation, it holds the picture the next frame is drawn on. Before the first frame it is cleared to transparent.
+	 *
+	 * @param canvas
+	 *            int array of at least <code>getWidth() * getHeight()</code> ARGB pixels.
+	 * @return false at the end of the animation or on an error, see <code>getStatus</code>.
+	 */
+	public boolean nextFrame(final int[] canvas) {
+		if ((in == null) || (status != STATUS_OK)) {
+			return false;
+		}
+		if (canvas.length < width * height) {
+			throw new IllegalArgumentException("canvas too small for " + width + "x" + height);
+		}
+		final int lastDelay = delay;
+		final int lastDisposal = dispose;
+		// a graphic control extension only applies to the image that follows it
+		dispose = 0;
+		transparency = false;
+		delay = 0;
+		if (readFrame(canvas)) {
+			return true;
+		}
+		// no frame, keep reporting the last one
+		delay = lastDelay;
+		dispose = lastDisposal;
+		return false;
+	}
+
+	/**
+	 * Reads blocks up to and including the next image, which is drawn onto the canvas.
+	 *
+	 * @return false at the end of the animation or on an error.
+	 */
+	protected boolean readFrame(final int[] canvas) {
+		try {
+			while (true) {
+				final int code = read();
+				switch (code) {
+					case 0x2C: // image separator
+						readImage(canvas);
+						return true;
+					case 0x21: // extension
+						switch (read()) {
+							case 0xf9: // graphics control extension
+								readGraphicControlExt();
+								break;
+							case 0xff: // application extension
+								readBlock();
+								if (new String(block, 0, Math.min(11, blockSize), "US-ASCII").equals("NETSCAPE2.0")) {
+									readNetscapeExt();
+								} else {
+									skip(); // don't care
+								}
+								break;
+							default: // uninteresting extension
+								skip();
+						}
+						break;
+					case 0x3b: // terminator
+						in = null;
+						return false;
+					case 0x00: // bad byte, but keep going and see what happens
+						break;
+					default:
+						status = STATUS_FORMAT_ERROR;
+						return false;
+				}
+			}
+		} catch (final IOException e) {
+			status = STATUS_FORMAT_ERROR;
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the frames lazily: <code>hasNext</code> decodes the next frame into the canvas, <code>next</code> returns the canvas. The canvas is reused, so a
+	 * frame has to be used or copied before asking for the next one. Decoding stops at the first error.
+	 *
+	 * @param canvas
+	 *            int array of at least <code>getWidth() * getHeight()</code> ARGB pixels.
+	 * @return Iterator over the composed frames.
+	 */
+	public Iterator<int[]> frames(final int[] canvas) {
+		return new Iterator<int[]>() {
+			private boolean ready; // a frame is decoded and not yet returned
+			private boolean done;
+
+			@Override
+			public boolean hasNext() {
+				if (!ready && !done) {
+					ready = nextFrame(canvas);
+					done = !ready;
+				}
+				return ready;
+			}
+
+			@Override
+			public int[] next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				ready = false;
+				return canvas;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @return read status code: <code>STATUS_OK</code> while frames can be read.
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return width of the GIF canvas.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return height of the GIF canvas.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return iteration count if one was specified, else 1. 0 means repeat forever. Known once the first frame is read.
+	 */
+	public int getLoopCount() {
+		return loopCount;
+	}
+
+	/**
+	 * @return number of frames decoded so far.
+	 */
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * @return display duration of the last decoded frame in milliseconds.
+	 */
+	public int getDelay() {
+		return delay;
+	}
+
+	/**
+	 * @return disposal method of the last decoded frame.
+	 */
+	public int getDispose() {
+		return dispose;
+	}
+
+	/**
+	 * Disposes of the previous frame, then decodes the image data of the current one onto the canvas.
+	 */
+	protected void readImage(final int[] canvas) throws IOException {
+		ix = readShort(); // (sub)image position & size
+		iy = readShort();
+		iw = readShort();
+		ih = readShort();
+
+		final int packed = read();
+		final boolean lctFlag = (packed & 0x80) != 0; // 1 - local color table flag
+		interlace = (packed & 0x40) != 0; // 2 - interlace flag
+		// 3 - sort flag
+		// 4-5 - reserved
+		final int[] act; // active color table
+		if (lctFlag) {
+			readColorTable(lct, 2 << (packed & 7)); // 6-8 - local color table size
+			act = lct;
+		} else if (gctSize > 0) {
+			act = gct;
+		} else {
+			throw new IOException("no color table");
+		}
+
+		decodeImageData(); // decode pixel data
+		skip();
+
+		if (frameCount == 0) {
+			Arrays.fill(canvas, 0, width * height, 0);
+		} else {
+			disposeLast(canvas);
+		}
+		if (dispose == 3) {
+			// keep the canvas to restore after this frame
+			if ((saved == null) || (saved.length < width * height)) {
+				saved = new int[width * height];
+			}
+			System.arraycopy(canvas, 0, saved, 0, width * height);
+		}
+		drawImage(canvas, act);
+
+		frameCount++;
+		lastDispose = dispose;
+		lrx = ix;
+		lry = iy;
+		lrw = iw;
+		lrh = ih;
+	}
+
+	/**
+	 * Applies the disposal method of the previous frame to the canvas. Restoring to background clears to transparent, the way browsers do.
+	 */
+	protected void disposeLast(final int[] canvas) {
+		final int left = Math.max(0, Math.min(lrx, width)); // clipped to the canvas like drawImage
+		final int top = Math.max(0, Math.min(lry, height));
+		final int right = Math.max(left, Math.min(lrx + lrw, width));
+		final int bottom = Math.max(top, Math.min(lry + lrh, height));
+		if (left == right) {
+			return;
+		}
+		if (lastDispose == 2) {
+			for (int y = top; y < bottom; y++) {
+				Arrays.fill(canvas, y * width + left, y * width + right, 0);
+			}
+		} else if ((lastDispose == 3) && (saved != null)) {
+			for (int y = top; y < bottom; y++) {
+				System.arraycopy(saved, y * width + left, canvas, y * width + left, right - left);
+			}
+		}
+	}
+
+	/**
+	 * Draws the indexed pixels of the current frame onto the canvas, skipping transparent ones and clipping to the canvas.
+	 */
+	protected void drawImage(final int[] canvas, final int[] act) {
+		final byte[] pixels = this.pixels;
+		final int trans = transparency ? transIndex : -1;
+		final int right = Math.min(ix + iw, width);
+		int pass = 1;
+		int inc = 8;
+		int iline = 0;
+		for (int i = 0; i < ih; i++) {
+			int line = i;
+			if (interlace) {
+				while (iline >= ih) {
+					pass++;
+					switch (pass) {
+						case 2:
+							iline = 4;
+							break;
+						case 3:
+							iline = 2;
+							inc = 4;
+							break;
+						case 4:
+							iline = 1;
+							inc = 2;
+							break;
+						default:
+							return;
+					}
+				}
+				line = iline;
+				iline += inc;
+			}
+			line += iy;
+			if (line >= height) {
+				continue;
+			}
+			int dx = line * width + ix;
+			final int dlim = line * width + right;
+			int sx = i * iw;
+			while (dx < dlim) {
+				final int index = pixels[sx++] & 0xff;
+				if (index != trans) {
+					canvas[dx] = act[index];
+				}
+				dx++;
+			}
+		}
+	}
+
+	/**
+	 * Decodes LZW image data into the pixel array of the current frame.
+	 */
+	protected void decodeImageData() throws IOException {
+		final int npix = iw * ih;
+		if ((pixels == null) || (pixels.length < npix)) {
+			pixels = new byte[npix]; // allocate new pixel array
+		}
+		final byte[] pixels = this.pixels;
+		final short[] prefix = this.prefix;
+		final byte[] suffix = this.suffix;
+		final byte[] pixelStack = this.pixelStack;
+
+		// Initialize GIF data stream decoder.
+		final int dataSize = read();
+		if ((dataSize < 1) || (dataSize > 11)) {
+			throw new IOException("bad LZW code size " + dataSize);
+		}
+		final int clear = 1 << dataSize;
+		final int endOfInformation = clear + 1;
+		int available = clear + 2;
+		int oldCode = -1;
+		int codeSize = dataSize + 1;
+		int codeMask = (1 << codeSize) - 1;
+		for (int code = 0; code < clear; code++) {
+			prefix[code] = 0;
+			suffix[code] = (byte) code;
+		}
+
+		// Decode GIF pixel stream.
+		int datum = 0, bits = 0, count = 0, first = 0, top = 0, pi = 0, bi = 0;
+		while (pi < npix) {
+			if (top == 0) {
+				if (bits < codeSize) {
+					// Load bytes until there are enough bits for a code.
+					if (count == 0) {
+						// Read a new data block.
+						count = readBlock();
+						if (count <= 0) {
+							break;
+						}
+						bi = 0;
+					}
+					datum += (block[bi++] & 0xff) << bits;
+					bits += 8;
+					count--;
+					continue;
+				}
+				// Get the next code.
+				int code = datum & codeMask;
+				datum >>= codeSize;
+				bits -= codeSize;
+
+				// Interpret the code
+				if ((code > available) || (code == endOfInformation)) {
+					break;
+				}
+				if (code == clear) {
+					// Reset decoder.
+					codeSize = dataSize + 1;
+					codeMask = (1 << codeSize) - 1;
+					available = clear + 2;
+					oldCode = -1;
+					continue;
+				}
+				if (oldCode == -1) {
+					pixelStack[top++] = suffix[code];
+					oldCode = code;
+					first = code;
+					continue;
+				}
+				final int inCode = code;
+				if (code == available) {
+					pixelStack[top++] = (byte) first;
+					code = oldCode;
+				}
+				while (code > clear) {
+					pixelStack[top++] = suffix[code];
+					code = prefix[code];
+				}
+				first = suffix[code] & 0xff;
+				pixelStack[top++] = (byte) first;
+
+				// Add a new string to the string table, unless it is full and the encoder has not cleared it yet.
+				if (available < MAX_STACK_SIZE) {
+					prefix[available] = (short) oldCode;
+					suffix[available] = (byte) first;
+					available++;
+					if (((available & codeMask) == 0) && (available < MAX_STACK_SIZE)) {
+						codeSize++;
+						codeMask += available;
+					}
+				}
+				oldCode = inCode;
+			}
+
+			// Pop a pixel off the pixel stack.
+			pixels[pi++] = pixelStack[--top];
+		}
+		Arrays.fill(pixels, pi, npix, (byte) 0); // clear missing pixels
+	}
+
+	/**
+	 * Resets the decoder for another stream.
+	 */
+	protected void init() {
+		status = STATUS_OK;
+		in = null;
+		width = height = 0;
+		gctSize = 0;
+		loopCount = 1;
+		dispose = lastDispose = 0;
+		transparency = false;
+		delay = 0;
+		frameCount = 0;
+	}
+
+	/**
+	 * Reads a single byte from the input stream.
+	 */
+	protected int read() throws IOException {
+		final int b = in.read();
+		if (b < 0) {
+			throw new IOException("unexpected end of GIF");
+		}
+		return b;
+	}
+
+	/**
+	 * Reads the next variable length block from input.
+	 *
+	 * @return number of bytes stored in "block".
+	 */
+	protected int readBlock() throws IOException {
+		blockSize = read();
+		int n = 0;
+		while (n < blockSize) {
+			final int count = in.read(block, n, blockSize - n);
+			if (count < 0) {
+				throw new IOException("unexpected end of GIF");
+			}
+			n += count;
+		}
+		return n;
+	}
+
+	/**
+	 * Reads color table as 256 RGB integer values.
+	 *
+	 * @param table
+	 *            int array to fill, entries beyond ncolors become black.
+	 * @param ncolors
+	 *            int number of colors to read.
+	 */
+	protected void readColorTable(final int[] table, final int ncolors) throws IOException {
+		for (int i = 0; i < ncolors; i++) {
+			final int r = read();
+			final int g = read();
+			final int b = read();
+			table[i] = 0xff000000 | (r << 16) | (g << 8) | b;
+		}
+		Arrays.fill(table, ncolors, table.length, 0xff000000);
+	}
+
+	/**
+	 * Reads Graphics Control Extension values.
+	 */
+	protected void readGraphicControlExt() throws IOException {
+		read(); // block size
+		final int packed = read(); // packed fields
+		dispose = (packed & 0x1c) >> 2; // disposal method
+		if (dispose == 0) {
+			dispose = 1; // elect to keep old image if discretionary
+		}
+		transparency = (packed & 1) != 0;
+		delay = readShort() * 10; // delay in milliseconds
+		transIndex = read(); // transparent color index
+		read(); // block terminator
+	}
+
+	/**
+	 * Reads GIF file header information.
+	 */
+	protected void readHeader() throws IOException {
+		final StringBuilder id = new StringBuilder(6);
+		for (int i = 0; i < 6; i++) {
+			id.append((char) read());
+		}
+		if (!id.toString().startsWith("GIF")) {
+			status = STATUS_FORMAT_ERROR;
+			return;
+		}
+		readLSD();
+		if (gctSize > 0) {
+			readColorTable(gct, gctSize);
+			bgColor = gct[bgIndex];
+		}
+	}
+
+	/**
+	 * Reads Logical Screen Descriptor.
+	 */
+	protected void readLSD() throws IOException {
+		// logical screen size
+		width = readShort();
+		height = readShort();
+
+		// packed fields
+		final int packed = read();
+		final boolean gctFlag = (packed & 0x80) != 0; // 1 : global color table flag
+		// 2-4 : color resolution
+		// 5 : gct sort flag
+		gctSize = gctFlag ? 2 << (packed & 7) : 0; // 6-8 : gct size
+
+		bgIndex = read(); // background color index
+		read(); // pixel aspect ratio
+	}
+
+	/**
+	 * Reads Netscape extension to obtain iteration count.
+	 */
+	protected void readNetscapeExt() throws IOException {
+		do {
+			readBlock();
+			if ((blockSize >= 3) && (block[0] == 1)) {
+				// loop count sub-block
+				final int b1 = block[1] & 0xff;
+				final int b2 = block[2] & 0xff;
+				loopCount = (b2 << 8) | b1;
+			}
+		} while (blockSize > 0);
+	}
+
+	/**
+	 * Reads next 16-bit value, LSB first.
+	 */
+	protected int readShort() throws IOException {
+		final int lsb = read();
+		return lsb | (read() << 8);
+	}
+
+	/**
+	 * Skips variable length blocks up to and including next zero length block.
+	 */
+	protected void skip() throws IOException {
+		do {
+			readBlock();
+		} while (blockSize > 0);
+	}
+
+}
@@ -0,0 +1,347 @@
+package de.geithonline.android.basics.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// ==============================================================================
+// Adapted from Jef Poskanzer's Java port by way of J. M. G. Elliott.
+// K Weiner 12/00
+
+class LZWEncoder {
+
+	private int imgW, imgH;
+
+	private byte[] pixAry;
+
+	private int initCodeSize;
+
+	// GIFCOMPR.C - GIF Image compression routines
+	//
+	// Lempel-Ziv compression based on 'compress'. GIF modifications by
+	// David Rowley (mgardi@watdcsu.waterloo.edu)
+
+	// General DEFINEs
+
+	static final int BITS = 12;
+
+	static final int HSIZE = 1 << 14; // 25% occupancy, power of 2
+
+	// GIF Image compression - modified 'compress'
+	//
+	// Based on: compress.c - File compression ala IEEE Computer, June 1984.
+	//
+	// By Authors: Spencer W. Thomas (decvax!harpo!utah-cs!utah-gr!thomas)
+	// Jim McKie (decvax!mcvax!jim)
+	// Steve Davies (decvax!vax135!petsd!peora!srd)
+	// Ken Turkowski (decvax!decwrl!turtlevax!ken)
+	// James A. Woods (decvax!ihnp4!ames!jaw)
+	// Joe Orost (decvax!vax135!petsd!joe)
+
+	int n_bits; // number of bits/code
+
+	int maxbits = BITS; // user settable max # bits/code
+
+	int maxcode; // maximum code, given n_bits
+
+	int maxmaxcode = 1 << BITS; // should NEVER generate this code
+
+	// prefix code << 20 | character << 12 | code of the string, 0 = empty slot
+	final int[] htab = new int[HSIZE];
+
+	// slots of htab in use, cleared instead of the whole table
+	final int[] usedSlots = new int[1 << BITS];
+
+	int usedCount = 0;
+
+	int free_ent = 0; // first unused entry
+
+	// block compression parameters -- after all codes are used up,
+	// and compression rate changes, start over.
+	boolean clear_flg = false;
+
+	// Algorithm: use open addressing with linear probing on the prefix code /
+	// next character combination, key and code packed into one int so a probe
+	// touches a single array. Multiplicative hashing spreads the keys over a
+	// table four times the size of the code space. Also do block compression:
+	// the code table is cleared when it fills, the variable-length output
+	// codes are re-sized at this point, and a special CLEAR code is generated
+	// for the decompressor.
+
+	int g_init_bits;
+
+	int ClearCode;
+
+	int EOFCode;
+
+	// output
+	//
+	// Output the given code.
+	// Inputs:
+	// code: A n_bits-bit integer. If == -1, then EOF. This assumes
+	// that n_bits =< wordsize - 1.
+	// Outputs:
+	// Appends the code to the output buffer.
+	// Assumptions:
+	// Chars are 8 bits long.
+	// Algorithm:
+	// Maintain a bit accumulator and move whole bytes out of it as soon
+	// as they are complete.
+
+	int cur_accum = 0;
+
+	int cur_bits = 0;
+
+	// The output: the initial code size byte, the data sub-blocks of at most
+	// 254 bytes, each preceded by its length, and the block terminator. Reused
+	// from frame to frame, grown when needed.
+	byte[] buf = new byte[8192];
+
+	// Bytes used in buf
+	int pos;
+
+	// Position of the length byte of the current sub-block
+	int blockStart;
+
+	// Number of data bytes so far in the current sub-block
+	int a_count;
+
+	// Code of the string matched so far, -1 before the first pixel
+	int ent;
+
+	// ----------------------------------------------------------------------------
+	LZWEncoder(final int width, final int height, final byte[] pixels, final int color_depth) {
+		reset(width, height, pixels, color_depth);
+	}
+
+	// Set up for another image, keeping the hash tables and output buffer
+	void reset(final int width, final int height, final byte[] pixels, final int color_depth) {
+		imgW = width;
+		imgH = height;
+		pixAry = pixels;
+		initCodeSize = Math.max(2, color_depth);
+		cur_accum = 0;
+		cur_bits = 0;
+	}
+
+	// Append a character to the current sub-block, starting a new one when
+	// it holds 254 characters.
+	final void char_out(final byte c) {
+		if (a_count == 254) {
+			buf[blockStart] = (byte) a_count;
+			blockStart = pos++;
+			a_count = 0;
+		}
+		buf[pos++] = c;
+		a_count++;
+	}
+
+	// table clear for block compress
+	void cl_block() {
+		cl_hash();
+		free_ent = ClearCode + 2;
+		clear_flg = true;
+
+		output(ClearCode);
+	}
+
+	// reset code table, only the slots in use
+	void cl_hash() {
+		for (int i = 0; i < usedCount; ++i) {
+			htab[usedSlots[i]] = 0;
+		}
+		usedCount = 0;
+	}
+
+	void compress(final int init_bits) {
+		startCompress(init_bits);
+		compress(pixAry, 0, imgW * imgH);
+		endCompress();
+	}
+
+	// Set up the code table and put out the clear code
+	void startCompress(final int init_bits) {
+		// Set up the globals: g_init_bits - initial number of bits
+		g_init_bits = init_bits;
+
+		// Set up the necessary values
+		clear_flg = false;
+		n_bits = g_init_bits;
+		maxcode = MAXCODE(n_bits);
+
+		ClearCode = 1 << (init_bits - 1);
+		EOFCode = ClearCode + 1;
+		free_ent = ClearCode + 2;
+
+		cl_hash(); // clear hash table
+
+		output(ClearCode);
+		ent = -1;
+	}
+
+	// Compress the next count pixels, starting at offset
+	void compress(final byte[] pixels, final int offset, final int count) {
+		final int[] htab = this.htab;
+		final int end = offset + count;
+		if (count == 0) {
+			return;
+		}
+		int p = offset;
+		int ent = this.ent;
+		if (ent < 0) {
+			ent = pixels[p++] & 0xff;
+		}
+
+		outer_loop: for (; p < end; p++) {
+			final int c = pixels[p] & 0xff;
+			final int fcode = (ent << 8) | c;
+			int i = (fcode * 0x9E3779B1) >>> 18; // multiplicative hashing, 14 bits
+			int slot;
+			while ((slot = htab[i]) != 0) {
+				if ((slot >>> 12) == fcode) {
+					ent = slot & 0xfff;
+					continue outer_loop;
+				}
+				i = (i + 1) & (HSIZE - 1);
+			}
+			output(ent);
+			ent = c;
+			if (free_ent < maxmaxcode) {
+				htab[i] = (fcode << 12) | free_ent++; // code -> hashtable
+				usedSlots[usedCount++] = i;
+			} else {
+				cl_block();
+			}
+		}
+		this.ent = ent;
+	}
+
+	// Put out the final code
+	void endCompress() {
+		if (ent >= 0) {
+			output(ent);
+		}
+		output(EOFCode);
+	}
+
+	// ----------------------------------------------------------------------------
+	// Compress the pixels into the output buffer, returns the number of bytes,
+	// see buffer()
+	int encode() {
+		// size for the typical output of 4 bits per pixel or less, output()
+		// grows the buffer if a frame compresses worse
+		final int estimate = imgW * imgH / 2 + 64;
+		if (buf.length < estimate) {
+			buf = new byte[estimate];
+		}
+		begin();
+		compress(pixAry, 0, imgW * imgH); // compress the pixel data
+		return end();
+	}
+
+	// ----------------------------------------------------------------------------
+	// Start the output of an image whose pixels are passed to compress() piece
+	// by piece
+	void begin() {
+		pos = 0;
+		buf[pos++] = (byte) initCodeSize; // write "initial code size" byte
+		blockStart = pos++;
+		a_count = 0;
+
+		startCompress(initCodeSize + 1);
+	}
+
+	// ----------------------------------------------------------------------------
+	// Write the complete sub-blocks of the output so far and drop them from
+	// the buffer, returns the number of bytes written
+	int flush(final OutputStream os) throws IOException {
+		final int length = blockStart;
+		os.write(buf, 0, length);
+		System.arraycopy(buf, length, buf, 0, pos - length);
+		pos -= length;
+		blockStart = 0;
+		return length;
+	}
+
+	// ----------------------------------------------------------------------------
+	// End the output, returns the number of bytes in the buffer
+	int end() {
+		endCompress();
+
+		if (a_count > 0) {
+			buf[blockStart] = (byte) a_count;
+		} else {
+			pos = blockStart; // drop the empty sub-block
+		}
+		buf[pos++] = 0; // write block terminator
+		return pos;
+	}
+
+	// ----------------------------------------------------------------------------
+	// Compress the pixels and write them in one go
+	void encode(final OutputStream os) throws IOException {
+		final int length = encode(); // may replace buf
+		os.write(buf, 0, length);
+	}
+
+	// Bytes of output in the buffer
+	int size() {
+		return pos;
+	}
+
+	// The output of the last encode(), valid up to the length it returned
+	byte[] buffer() {
+		return buf;
+	}
+
+	final int MAXCODE(final int n_bits) {
+		return (1 << n_bits) - 1;
+	}
+
+	void output(final int code) {
+		if (pos + 8 > buf.length) {
+			buf = Arrays.copyOf(buf, buf.length * 2);
+		}
+
+		cur_accum &= (1 << cur_bits) - 1;
+
+		if (cur_bits > 0) {
+			cur_accum |= (code << cur_bits);
+		} else {
+			cur_accum = code;
+		}
+
+		cur_bits += n_bits;
+
+		while (cur_bits >= 8) {
+			char_out((byte) cur_accum);
+			cur_accum >>= 8;
+			cur_bits -= 8;
+		}
+
+		// If the next entry is going to be too big for the code size,
+		// then increase it, if possible.
+		if (free_ent > maxcode || clear_flg) {
+			if (clear_flg) {
+				maxcode = MAXCODE(n_bits = g_init_bits);
+				clear_flg = false;
+			} else {
+				++n_bits;
+				if (n_bits == maxbits) {
+					maxcode = maxmaxcode;
+				} else {
+					maxcode = MAXCODE(n_bits);
+				}
+			}
+		}
+
+		if (code == EOFCode) {
+			// At EOF, write the rest of the buffer.
+			while (cur_bits > 0) {
+				char_out((byte) cur_accum);
+				cur_accum >>= 8;
+				cur_bits -= 8;
+			}
+		}
+	}
+}
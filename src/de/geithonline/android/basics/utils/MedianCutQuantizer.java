@@ -0,0 +1,129 @@
+package de.geithonline.android.basics.utils;
+
+/**
+ * Median cut quantizer (Heckbert). Starts with one box around all sampled colors in a 32x32x32 histogram and keeps splitting the most populated box across
+ * its longest side, at the median of its pixels, until there are 256 boxes. Each box becomes the mean color of its pixels.
+ */
+public class MedianCutQuantizer extends AbstractColorQuantizer {
+
+	// boxes as inclusive cell ranges per channel
+	private final int[] lo = new int[3 * 256];
+	private final int[] hi = new int[3 * 256];
+	private final long[] boxCount = new long[256];
+	private final long[] planes = new long[32]; // pixels per plane across the axis being split
+
+	@Override
+	protected int buildPalette(final byte[] palette) {
+		histogram();
+		lo[0] = lo[1] = lo[2] = 0;
+		hi[0] = hi[1] = hi[2] = 31;
+		int boxes = 1;
+		if (!shrink(0)) {
+			return 0;
+		}
+		while (boxes < 256) {
+			// most populated box that can still be split
+			int box = -1;
+			for (int i = 0; i < boxes; i++) {
+				if (((box < 0) || (boxCount[i] > boxCount[box])) && splittable(i)) {
+					box = i;
+				}
+			}
+			if (box < 0) {
+				break;
+			}
+			split(box, boxes++);
+		}
+		for (int i = 0; i < boxes; i++) {
+			long b = 0, g = 0, r = 0, n = 0;
+			for (int cb = lo[i * 3]; cb <= hi[i * 3]; cb++) {
+				for (int cg = lo[i * 3 + 1]; cg <= hi[i * 3 + 1]; cg++) {
+					for (int cr = lo[i * 3 + 2]; cr <= hi[i * 3 + 2]; cr++) {
+						final int key = (cb << 10) | (cg << 5) | cr;
+						n += histCount[key];
+						b += histB[key];
+						g += histG[key];
+						r += histR[key];
+					}
+				}
+			}
+			setEntry(palette, i, b, g, r, n);
+		}
+		return boxes;
+	}
+
+	private boolean splittable(final int box) {
+		final int k = box * 3;
+		return (hi[k] > lo[k]) || (hi[k + 1] > lo[k + 1]) || (hi[k + 2] > lo[k + 2]);
+	}
+
+	// splits box at the median of its longest side, the upper part goes to box other
+	private void split(final int box, final int other) {
+		final int k = box * 3;
+		int axis = 0;
+		for (int a = 1; a < 3; a++) {
+			if (hi[k + a] - lo[k + a] > hi[k + axis] - lo[k + axis]) {
+				axis = a;
+			}
+		}
+		for (int p = lo[k + axis]; p <= hi[k + axis]; p++) {
+			planes[p] = 0;
+		}
+		for (int cb = lo[k]; cb <= hi[k]; cb++) {
+			for (int cg = lo[k + 1]; cg <= hi[k + 1]; cg++) {
+				for (int cr = lo[k + 2]; cr <= hi[k + 2]; cr++) {
+					final int p = (axis == 0) ? cb : (axis == 1) ? cg : cr;
+					planes[p] += histCount[(cb << 10) | (cg << 5) | cr];
+				}
+			}
+		}
+		// the cut leaves at least one plane on each side
+		int cut = lo[k + axis];
+		long below = planes[cut];
+		while ((cut + 1 < hi[k + axis]) && (2 * below < boxCount[box])) {
+			below += planes[++cut];
+		}
+		final int j = other * 3;
+		System.arraycopy(lo, k, lo, j, 3);
+		System.arraycopy(hi, k, hi, j, 3);
+		hi[k + axis] = cut;
+		lo[j + axis] = cut + 1;
+		shrink(box);
+		shrink(other);
+	}
+
+	// shrinks the box to the cells holding pixels, returns false if there are none
+	private boolean shrink(final int box) {
+		final int k = box * 3;
+		int minB = 31, minG = 31, minR = 31, maxB = 0, maxG = 0, maxR = 0;
+		long n = 0;
+		for (int cb = lo[k]; cb <= hi[k]; cb++) {
+			for (int cg = lo[k + 1]; cg <= hi[k + 1]; cg++) {
+				for (int cr = lo[k + 2]; cr <= hi[k + 2]; cr++) {
+					final int count = histCount[(cb << 10) | (cg << 5) | cr];
+					if (count > 0) {
+						n += count;
+						minB = Math.min(minB, cb);
+						maxB = Math.max(maxB, cb);
+						minG = Math.min(minG, cg);
+						maxG = Math.max(maxG, cg);
+						minR = Math.min(minR, cr);
+						maxR = Math.max(maxR, cr);
+					}
+				}
+			}
+		}
+		boxCount[box] = n;
+		if (n == 0) {
+			return false;
+		}
+		lo[k] = minB;
+		lo[k + 1] = minG;
+		lo[k + 2] = minR;
+		hi[k] = maxB;
+		hi[k + 1] = maxG;
+		hi[k + 2] = maxR;
+		return true;
+	}
+
+}
@@ -0,0 +1,967 @@
+package de.geithonline.android.basics.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/*
+ * NeuQuant Neural-Net Quantization Algorithm ------------------------------------------
+ * 
+ * Copyright (c) 1994 Anthony Dekker
+ * 
+ * NEUQUANT Neural-Net quantization algorithm by Anthony Dekker, 1994. See "Kohonen neural networks for optimal colour quantization" in "Network: Computation in
+ * Neural Systems" Vol. 5 (1994) pp 351-367. for a discussion of the algorithm.
+ * 
+ * Any party obtaining a copy of these files from the author, directly or indirectly, is granted, free of charge, a full and unrestricted irrevocable,
+ * world-wide, paid up, royalty-free, nonexclusive right and license to deal in this software and documentation files (the "Software"), including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons who receive
+ * copies from any such party to do so, with the only requirement being that this copyright notice remain intact.
+ */
+
+// Ported to Java 12/00 K Weiner
+class NeuQuant implements ColorQuantizer {
+
+	protected static final int netsize = 256; /* number of colours used */
+
+	/* four primes near 500 - assume no image has a length so large */
+	/* that it is divisible by all four primes */
+	protected static final int prime1 = 499;
+
+	protected static final int prime2 = 491;
+
+	protected static final int prime3 = 487;
+
+	protected static final int prime4 = 503;
+
+	protected static final int minpicturebytes = (3 * prime4);
+
+	/* minimum size for input image */
+
+	/*
+	 * Program Skeleton ---------------- [select samplefac in range 1..30] [read image from input file] pic = (unsigned char*) malloc(3*width*height);
+	 * initnet(pic,3*width*height,samplefac); learn(); unbiasnet(); [write output image header, using writecolourmap(f)] inxbuild(); write output image using
+	 * inxsearch(b,g,r)
+	 */
+
+	/*
+	 * Network Definitions -------------------
+	 */
+
+	protected static final int maxnetpos = (netsize - 1);
+
+	protected static final int netbiasshift = 4; /* bias for colour values */
+
+	protected static final int ncycles = 100; /* no. of learning cycles */
+
+	protected static final int mincycles = 20; /* fewest learning cycles settable, see setCycles() */
+
+	protected static final int minpartsamples = (ncycles << 4); /* min. samples per sub-network in parallel learning */
+
+	protected static final int mergecycles = 8; /* max. k-means iterations when merging sub-networks */
+
+	/* defs for warm starts from the network of a previous frame */
+	protected static final int warmmincycles = 4; /* learning cycles run at least */
+
+	protected static final int warmmaxcycles = (ncycles >> 2); /* and at most */
+
+	protected static final int warmalphashift = 3; /* alpha starts at 1/8 of initalpha */
+
+	protected static final int warmradius = (2 << 6); /* radius starts at 2.0, biased by radiusbiasshift */
+
+	protected static final int warmsettled = 10; /* converged when neurons moved less than 10/16 per sample on average in a cycle, biased */
+
+	protected static final int warmcutoff = (24 << 4); /* cold start if samples are further from the loaded network on average, biased */
+
+	/* defs for freq and bias */
+	protected static final int intbiasshift = 16; /* bias for fractions */
+
+	protected static final int intbias = ((1) << intbiasshift);
+
+	protected static final int gammashift = 10; /* gamma = 1024 */
+
+	protected static final int gamma = ((1) << gammashift);
+
+	protected static final int betashift = 10;
+
+	protected static final int beta = (intbias >> betashift); /* beta = 1/1024 */
+
+	protected static final int betagamma = (intbias << (gammashift - betashift));
+
+	/* defs for decreasing radius factor */
+	protected static final int initrad = (netsize >> 3); /*
+															 * for 256 cols, radius starts
+															 */
+
+	protected static final int radiusbiasshift = 6; /* at 32.0 biased by 6 bits */
+
+	protected static final int radiusbias = ((1) << radiusbiasshift);
+
+	protected static final int initradius = (initrad * radiusbias); /*
+																	 * and decreases by a
+																	 */
+
+	protected static final int radiusdec = 30; /* factor of 1/30 each cycle */
+
+	/* defs for decreasing alpha factor */
+	protected static final int alphabiasshift = 10; /* alpha starts at 1.0 */
+
+	protected static final int initalpha = ((1) << alphabiasshift);
+
+	protected int alphadec; /* biased by 10 bits */
+
+	/* radbias and alpharadbias used for radpower calculation */
+	protected static final int radbiasshift = 8;
+
+	protected static final int radbias = ((1) << radbiasshift);
+
+	protected static final int alpharadbshift = (alphabiasshift + radbiasshift);
+
+	protected static final int alpharadbias = ((1) << alpharadbshift);
+
+	/*
+	 * Types and Global Variables --------------------------
+	 */
+
+	protected byte[] thepicture; /* the input image itself */
+
+	protected int lengthcount; /* lengthcount = H*W*3 */
+
+	protected int samplefac; /* sampling factor 1..30 */
+
+	protected int cycles = ncycles; /* learning cycles, see setCycles() */
+
+	// typedef int pixel[4]; /* BGRc */
+	protected int[][] network; /* the network itself - [netsize][4] */
+
+	protected int[] netindex = new int[256];
+
+	protected int[] netpos = new int[netsize];
+
+	/* network position of each colour, for map hints */
+
+	protected short[] mapcache;
+
+	/* inverse colour map [b>>3][g>>3][r>>3], -1 = not yet filled */
+
+	/* for network lookup - really 256 */
+
+	protected int[] bias = new int[netsize];
+
+	/* bias and freq arrays for learning */
+	protected int[] freq = new int[netsize];
+
+	protected int[] radpower = new int[initrad];
+
+	/* radpower for precomputation */
+
+	protected int[] colorindex = new int[netsize];
+
+	protected byte[] colormap = new byte[3 * netsize];
+
+	/* reused by colorMap() */
+
+	protected NeuQuant[] subnets;
+
+	protected List<Callable<NeuQuant>> subtasks;
+
+	/* sub-networks for parallel learning */
+
+	protected int[][] mergepoints;
+
+	protected long[] mergeweight;
+
+	protected int[] mergeowner;
+
+	protected long[][] mergesums = new long[netsize][4];
+
+	/* scratch space for merging sub-networks */
+
+	protected boolean warm;
+
+	protected int warmcycles;
+
+	/* network loaded by warmStart(), learning cycles the last warm start took */
+
+	protected int[] learnedstate = new int[netsize * 6];
+
+	protected int[] cyclestart = new int[netsize * 3];
+
+	/* network state after learning, for warm starts; network at the start of a warm cycle */
+
+	/*
+	 * Initialise network in range (0,0,0) to (255,255,255) and set parameters -----------------------------------------------------------------------
+	 */
+	public NeuQuant(final byte[] thepic, final int len, final int sample) {
+
+		network = new int[netsize][];
+		for (int i = 0; i < netsize; i++) {
+			network[i] = new int[4];
+		}
+		reset(thepic, len, sample);
+	}
+
+	/*
+	 * Reinitialise network for another image, reusing all arrays ------------------------------------------------------------
+	 */
+	public void reset(final byte[] thepic, final int len, final int sample) {
+
+		int i;
+		int[] p;
+
+		thepicture = thepic;
+		lengthcount = len;
+		samplefac = sample;
+
+		for (i = 0; i < netsize; i++) {
+			p = network[i];
+			p[0] = p[1] = p[2] = (i << (netbiasshift + 8)) / netsize;
+			p[3] = 0;
+			freq[i] = intbias / netsize; /* 1/netsize */
+			bias[i] = 0;
+		}
+		warm = false;
+	}
+
+	/*
+	 * Start learning from a network learned before, see learnedState(), instead of the grey ramp. Call after reset(); process() then fine tunes the
+	 * network with a small alpha and radius for as few cycles as it takes to converge. If the image turns out to be too different, it learns from
+	 * scratch ---------------------------------------------------------------------------------------------------------------------------------
+	 */
+	public void warmStart(final int[] state) {
+		for (int i = 0, k = 0; i < netsize; i++) {
+			final int[] p = network[i];
+			p[0] = state[k++];
+			p[1] = state[k++];
+			p[2] = state[k++];
+			p[3] = 0;
+			freq[i] = state[k++];
+			bias[i] = state[k++];
+			k++;
+		}
+		warm = true;
+	}
+
+	/*
+	 * Learn for fewer cycles than the usual 100, each of them as long as before. The annealing of alpha and radius is spread over the cycles learned, so
+	 * fewer samples are taken and the network ends up as settled but less fitted. Warm starts are capped at a quarter of the cycles. Kept across reset()
+	 * -----------------------------------------------------------------------------------------------------------------------------------------------
+	 */
+	public void setCycles(final int n) {
+		cycles = Math.max(mincycles, Math.min(ncycles, n));
+	}
+
+	/*
+	 * Network, frequencies and biases as left by the last learning, 6 ints per neuron in learning order. Valid until the next process()
+	 * --------------------------------------------------------------------------------------------------------------------------------
+	 */
+	public int[] learnedState() {
+		return learnedstate;
+	}
+
+	/*
+	 * Number of cycles the last warm start learned for, 0 if it learned from scratch
+	 * ------------------------------------------------------------------------------
+	 */
+	public int warmCycles() {
+		return warmcycles;
+	}
+
+	protected void savestate() {
+		for (int i = 0, k = 0; i < netsize; i++) {
+			final int[] p = network[i];
+			learnedstate[k++] = p[0];
+			learnedstate[k++] = p[1];
+			learnedstate[k++] = p[2];
+			learnedstate[k++] = freq[i];
+			learnedstate[k++] = bias[i];
+			learnedstate[k++] = 0;
+		}
+	}
+
+	public byte[] colorMap() {
+		final byte[] map = colormap;
+		final int[] index = colorindex;
+		for (int i = 0; i < netsize; i++) {
+			index[network[i][3]] = i;
+		}
+		int k = 0;
+		for (int i = 0; i < netsize; i++) {
+			final int j = index[i];
+			map[k++] = (byte) (network[j][0]);
+			map[k++] = (byte) (network[j][1]);
+			map[k++] = (byte) (network[j][2]);
+		}
+		return map;
+	}
+
+	/*
+	 * Insertion sort of network and building of netindex[0..255] (to do after unbias)
+	 * -------------------------------------------------------------------------------
+	 */
+	public void inxbuild() {
+
+		int i, j, smallpos, smallval;
+		int[] p;
+		int[] q;
+		int previouscol, startpos;
+
+		previouscol = 0;
+		startpos = 0;
+		for (i = 0; i < netsize; i++) {
+			p = network[i];
+			smallpos = i;
+			smallval = p[1]; /* index on g */
+			/* find smallest in i..netsize-1 */
+			for (j = i + 1; j < netsize; j++) {
+				q = network[j];
+				if (q[1] < smallval) { /* index on g */
+					smallpos = j;
+					smallval = q[1]; /* index on g */
+				}
+			}
+			q = network[smallpos];
+			/* swap p (i) and q (smallpos) entries */
+			if (i != smallpos) {
+				j = q[0];
+				q[0] = p[0];
+				p[0] = j;
+				j = q[1];
+				q[1] = p[1];
+				p[1] = j;
+				j = q[2];
+				q[2] = p[2];
+				p[2] = j;
+				j = q[3];
+				q[3] = p[3];
+				p[3] = j;
+			}
+			/* smallval entry is now in position i */
+			if (smallval != previouscol) {
+				netindex[previouscol] = (startpos + i) >> 1;
+				for (j = previouscol + 1; j < smallval; j++) {
+					netindex[j] = i;
+				}
+				previouscol = smallval;
+				startpos = i;
+			}
+		}
+		netindex[previouscol] = (startpos + maxnetpos) >> 1;
+		for (j = previouscol + 1; j < 256; j++) {
+			netindex[j] = maxnetpos; /* really 256 */
+		}
+		for (i = 0; i < netsize; i++) {
+			netpos[network[i][3]] = i;
+		}
+		if (mapcache != null) {
+			Arrays.fill(mapcache, (short) -1);
+		}
+	}
+
+	/*
+	 * Allocate the inverse colour map, to do after inxbuild. It is cleared by every inxbuild --------------------------------------------------------------
+	 */
+	public void prepareCache() {
+		if (mapcache == null) {
+			mapcache = new short[1 << 15];
+			Arrays.fill(mapcache, (short) -1);
+		}
+	}
+
+	/*
+	 * Look up BGR values 0..255 in the inverse colour map, searching for the cell centre on a miss ------------------------------------------------------
+	 * Concurrent misses on the same cell store the same value
+	 */
+	public int lookup(final int b, final int g, final int r) {
+
+		final int key = ((b >> 3) << 10) | ((g >> 3) << 5) | (r >> 3);
+		int index = mapcache[key];
+		if (index < 0) {
+			index = map((b & 0xf8) | 4, (g & 0xf8) | 4, (r & 0xf8) | 4);
+			mapcache[key] = (short) index;
+		}
+		return index;
+	}
+
+	/*
+	 * Main Learning Loop ------------------
+	 */
+	public void learn() {
+		learn(0, 1);
+	}
+
+	/*
+	 * Learns from every parts-th sample of the stream, starting at sample part --------------------------------------------------------------------------
+	 */
+	protected void learn(final int part, final int parts) {
+
+		int i, j, b, g, r;
+		int radius, rad, alpha, step, advance, delta, samplepixels, steps;
+		byte[] p;
+		int pix, lim;
+
+		if (lengthcount < minpicturebytes) {
+			samplefac = 1;
+		}
+		alphadec = 30 + ((samplefac - 1) / 3);
+		p = thepicture;
+		lim = lengthcount;
+		samplepixels = (lengthcount / (3 * samplefac) - part + parts - 1) / parts;
+		delta = samplepixels / ncycles;
+		if (delta == 0) {
+			delta = 1;
+		}
+		samplepixels = (int) ((long) samplepixels * cycles / ncycles);
+		steps = 0;
+		alpha = initalpha;
+		radius = initradius;
+
+		rad = radius >> radiusbiasshift;
+		if (rad <= 1) {
+			rad = 0;
+		}
+		for (i = 0; i < rad; i++) {
+			radpower[i] = alpha * (((rad * rad - i * i) * radbias) / (rad * rad));
+		}
+
+		// fprintf(stderr,"beginning 1D learning: initial radius=%d\n", rad);
+
+		step = samplestep();
+
+		pix = (int) (((long) part * step) % lengthcount);
+		advance = (int) (((long) parts * step) % lengthcount);
+
+		i = 0;
+		while (i < samplepixels) {
+			b = (p[pix + 0] & 0xff) << netbiasshift;
+			g = (p[pix + 1] & 0xff) << netbiasshift;
+			r = (p[pix + 2] & 0xff) << netbiasshift;
+			j = contest(b, g, r);
+
+			altersingle(alpha, j, b, g, r);
+			if (rad != 0) {
+				alterneigh(rad, j, b, g, r); /* alter neighbours */
+			}
+
+			pix += advance;
+			if (pix >= lim) {
+				pix -= lengthcount;
+			}
+
+			i++;
+			if (i % delta == 0) {
+				/* ncycles annealing steps, spread over the cycles learned */
+				for (j = (int) ((long) (i / delta) * ncycles / cycles); steps < j; steps++) {
+					alpha -= alpha / alphadec;
+					radius -= radius / radiusdec;
+				}
+				rad = radius >> radiusbiasshift;
+				if (rad <= 1) {
+					rad = 0;
+				}
+				for (j = 0; j < rad; j++) {
+					radpower[j] = alpha * (((rad * rad - j * j) * radbias) / (rad * rad));
+				}
+			}
+		}
+		// fprintf(stderr,"finished 1D learning: final alpha=%f
+		// !\n",((float)alpha)/initalpha);
+	}
+
+	/*
+	 * Step through the picture, a prime number of pixels that the length is not divisible by
+	 * --------------------------------------------------------------------------------------
+	 */
+	protected int samplestep() {
+		if (lengthcount < minpicturebytes) {
+			return 3;
+		} else if ((lengthcount % prime1) != 0) {
+			return 3 * prime1;
+		} else if ((lengthcount % prime2) != 0) {
+			return 3 * prime2;
+		} else if ((lengthcount % prime3) != 0) {
+			return 3 * prime3;
+		} else {
+			return 3 * prime4;
+		}
+	}
+
+	/*
+	 * Warm Learning Loop: fine tunes a network loaded by warmStart() cycle by cycle until the neurons settle
+	 * -----------------------------------------------------------------------------------------------------
+	 */
+	protected void learnwarm() {
+
+		int i, j, b, g, r, c;
+		int radius, rad, alpha, step, delta, samplepixels, moved;
+		int[] n;
+		final byte[] p = thepicture;
+
+		if (lengthcount < minpicturebytes) {
+			samplefac = 1;
+		}
+		alphadec = 30 + ((samplefac - 1) / 3);
+		samplepixels = lengthcount / (3 * samplefac);
+		delta = Math.max(1, samplepixels / ncycles);
+		alpha = initalpha >> warmalphashift;
+		radius = warmradius;
+		step = samplestep();
+
+		if (warmdistance(delta, step) / delta > warmcutoff) {
+			/* too different from the frame the network was learned on */
+			reset(thepicture, lengthcount, samplefac);
+			learn();
+			warmcycles = 0;
+			return;
+		}
+
+		final int maxcycles = Math.max(warmmincycles, Math.min(warmmaxcycles, cycles >> 2));
+		int pix = 0;
+		for (c = 0; c < maxcycles; c++) {
+			rad = radius >> radiusbiasshift;
+			if (rad <= 1) {
+				rad = 0;
+			}
+			for (i = 0; i < rad; i++) {
+				radpower[i] = alpha * (((rad * rad - i * i) * radbias) / (rad * rad));
+			}
+			for (i = 0, j = 0; i < netsize; i++) {
+				n = network[i];
+				cyclestart[j++] = n[0];
+				cyclestart[j++] = n[1];
+				cyclestart[j++] = n[2];
+			}
+
+			for (i = 0; i < delta; i++) {
+				b = (p[pix + 0] & 0xff) << netbiasshift;
+				g = (p[pix + 1] & 0xff) << netbiasshift;
+				r = (p[pix + 2] & 0xff) << netbiasshift;
+				j = contest(b, g, r);
+
+				altersingle(alpha, j, b, g, r);
+				if (rad != 0) {
+					alterneigh(rad, j, b, g, r); /* alter neighbours */
+				}
+
+				pix += step;
+				if (pix >= lengthcount) {
+					pix -= lengthcount;
+				}
+			}
+			moved = 0;
+			for (i = 0, j = 0; i < netsize; i++) {
+				n = network[i];
+				moved += Math.abs(n[0] - cyclestart[j++]);
+				moved += Math.abs(n[1] - cyclestart[j++]);
+				moved += Math.abs(n[2] - cyclestart[j++]);
+			}
+			alpha -= alpha / alphadec;
+			radius -= radius / radiusdec;
+			if ((c + 1 >= warmmincycles) && (moved < delta * warmsettled)) {
+				c++;
+				break;
+			}
+		}
+		warmcycles = c;
+	}
+
+	/*
+	 * Probe of a warm start: sum of the distances of the first cycle's samples to their nearest neuron of the loaded network, which is left unchanged.
+	 * Measured before learning, since learning moves the winning neurons onto the new colours within a few samples
+	 * -------------------------------------------------------------------------------------------------------------------------------------------------
+	 */
+	protected long warmdistance(final int delta, final int step) {
+
+		int i, k, b, g, r, dist, bestd, a;
+		int[] n;
+		long distance = 0;
+		int pix = 0;
+		final byte[] p = thepicture;
+
+		for (i = 0; i < delta; i++) {
+			b = (p[pix + 0] & 0xff) << netbiasshift;
+			g = (p[pix + 1] & 0xff) << netbiasshift;
+			r = (p[pix + 2] & 0xff) << netbiasshift;
+			bestd = Integer.MAX_VALUE;
+			for (k = 0; k < netsize; k++) {
+				n = network[k];
+				dist = n[1] - g;
+				if (dist < 0) {
+					dist = -dist;
+				}
+				a = n[0] - b;
+				if (a < 0) {
+					a = -a;
+				}
+				dist += a;
+				if (dist < bestd) {
+					a = n[2] - r;
+					if (a < 0) {
+						a = -a;
+					}
+					dist += a;
+					if (dist < bestd) {
+						bestd = dist;
+					}
+				}
+			}
+			distance += bestd;
+
+			pix += step;
+			if (pix >= lengthcount) {
+				pix -= lengthcount;
+			}
+		}
+		return distance;
+	}
+
+	/*
+	 * Search for BGR values 0..255 (after net is unbiased) and return colour index ----------------------------------------------------------------------------
+	 */
+	public int map(final int b, final int g, final int r) {
+		return search(b, g, r, 1000, -1); /* biggest possible dist is 256*3 */
+	}
+
+	/*
+	 * Search starting from a known colour index. Only entries at most as far as the hint are visited, the result is the same as map(b, g, r)
+	 */
+	public int map(final int b, final int g, final int r, final int hint) {
+		final int[] p = network[netpos[hint]];
+		return search(b, g, r, Math.abs(p[0] - b) + Math.abs(p[1] - g) + Math.abs(p[2] - r) + 1, hint);
+	}
+
+	protected int search(final int b, final int g, final int r, int bestd, int best) {
+
+		int i, j, dist, a;
+		int[] p;
+
+		i = netindex[g]; /* index on g */
+		j = i - 1; /* start at netindex[g] and work outwards */
+
+		while ((i < netsize) || (j >= 0)) {
+			if (i < netsize) {
+				p = network[i];
+				dist = p[1] - g; /* inx key */
+				if (dist >= bestd) {
+					i = netsize; /* stop iter */
+				} else {
+					i++;
+					if (dist < 0) {
+						dist = -dist;
+					}
+					a = p[0] - b;
+					if (a < 0) {
+						a = -a;
+					}
+					dist += a;
+					if (dist < bestd) {
+						a = p[2] - r;
+						if (a < 0) {
+							a = -a;
+						}
+						dist += a;
+						if (dist < bestd) {
+							bestd = dist;
+							best = p[3];
+						}
+					}
+				}
+			}
+			if (j >= 0) {
+				p = network[j];
+				dist = g - p[1]; /* inx key - reverse dif */
+				if (dist >= bestd) {
+					j = -1; /* stop iter */
+				} else {
+					j--;
+					if (dist < 0) {
+						dist = -dist;
+					}
+					a = p[0] - b;
+					if (a < 0) {
+						a = -a;
+					}
+					dist += a;
+					if (dist < bestd) {
+						a = p[2] - r;
+						if (a < 0) {
+							a = -a;
+						}
+						dist += a;
+						if (dist < bestd) {
+							bestd = dist;
+							best = p[3];
+						}
+					}
+				}
+			}
+		}
+		return (best);
+	}
+
+	public byte[] process() {
+		if (warm) {
+			learnwarm();
+		} else {
+			learn();
+			warmcycles = 0;
+		}
+		savestate();
+		unbiasnet();
+		inxbuild();
+		return colorMap();
+	}
+
+	public byte[] process(final ForkJoinPool pool, final int parts) {
+		if (warm || (pool == null) || (parts < 2) || (lengthcount / (3 * samplefac) < parts * minpartsamples)) {
+			return process();
+		}
+		learn(pool, parts);
+		warmcycles = 0;
+		savestate();
+		unbiasnet();
+		inxbuild();
+		return colorMap();
+	}
+
+	/*
+	 * Parallel Learning: trains parts sub-networks on interleaved sample streams and merges them neuron by neuron, weighted by frequency
+	 * -----------------------------------------------------------------------------------------------------------------------------------
+	 */
+	public void learn(final ForkJoinPool pool, final int parts) {
+
+		if ((subnets == null) || (subnets.length != parts)) {
+			subnets = new NeuQuant[parts];
+			subtasks = new ArrayList<Callable<NeuQuant>>(parts);
+			for (int k = 0; k < parts; k++) {
+				final int part = k;
+				final NeuQuant sub = subnets[k] = new NeuQuant(thepicture, lengthcount, samplefac);
+				subtasks.add(new Callable<NeuQuant>() {
+					@Override
+					public NeuQuant call() {
+						sub.reset(thepicture, lengthcount, samplefac);
+						sub.setCycles(cycles);
+						sub.learn(part, parts);
+						return sub;
+					}
+				});
+			}
+		}
+		final NeuQuant[] subs = subnets;
+		try {
+			final List<Future<NeuQuant>> results = pool.invokeAll(subtasks);
+			for (int k = 0; k < parts; k++) {
+				results.get(k).get();
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			learn();
+			return;
+		} catch (final ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+
+		merge(subs);
+	}
+
+	/*
+	 * Merges sub-networks: weighted k-means over all their neurons, seeded with the first sub-network. Every neuron ends up as the frequency-weighted mean of
+	 * the sub-network neurons assigned to it -------------------------------------------------------------------------------------------------------------
+	 */
+	protected void merge(final NeuQuant[] subs) {
+
+		final int count = subs.length * netsize;
+		if ((mergepoints == null) || (mergepoints.length != count)) {
+			mergepoints = new int[count][];
+			mergeweight = new long[count];
+			mergeowner = new int[count];
+		}
+		final int[][] points = mergepoints;
+		final long[] weight = mergeweight;
+		final int[] owner = mergeowner;
+		final long[][] sums = mergesums;
+		int n = 0;
+		for (final NeuQuant sub : subs) {
+			for (int i = 0; i < netsize; i++) {
+				points[n] = sub.network[i];
+				weight[n++] = sub.freq[i] + 1;
+			}
+		}
+		for (int i = 0; i < netsize; i++) {
+			System.arraycopy(subs[0].network[i], 0, network[i], 0, 3);
+		}
+		for (int iter = 0; iter < mergecycles; iter++) {
+			boolean moved = false;
+			for (int k = 0; k < count; k++) {
+				final int[] q = points[k];
+				int best = 0;
+				long bestd = Long.MAX_VALUE;
+				for (int i = 0; i < netsize; i++) {
+					final int[] c = network[i];
+					final long db = c[0] - q[0];
+					final long dg = c[1] - q[1];
+					final long dr = c[2] - q[2];
+					final long d = db * db + dg * dg + dr * dr;
+					if (d < bestd) {
+						bestd = d;
+						best = i;
+					}
+				}
+				if ((iter == 0) || (owner[k] != best)) {
+					owner[k] = best;
+					moved = true;
+				}
+			}
+			if (!moved) {
+				break;
+			}
+			for (int i = 0; i < netsize; i++) {
+				sums[i][0] = sums[i][1] = sums[i][2] = sums[i][3] = 0;
+			}
+			for (int k = 0; k < count; k++) {
+				final long[] sum = sums[owner[k]];
+				final long w = weight[k];
+				sum[0] += w * points[k][0];
+				sum[1] += w * points[k][1];
+				sum[2] += w * points[k][2];
+				sum[3] += w;
+			}
+			for (int i = 0; i < netsize; i++) {
+				final long[] sum = sums[i];
+				if (sum[3] > 0) {
+					network[i][0] = (int) (sum[0] / sum[3]);
+					network[i][1] = (int) (sum[1] / sum[3]);
+					network[i][2] = (int) (sum[2] / sum[3]);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Unbias network to give byte values 0..255 and record position i to prepare for sort
+	 * -----------------------------------------------------------------------------------
+	 */
+	public void unbiasnet() {
+
+		int i;
+
+		for (i = 0; i < netsize; i++) {
+			network[i][0] >>= netbiasshift;
+			network[i][1] >>= netbiasshift;
+			network[i][2] >>= netbiasshift;
+			network[i][3] = i; /* record colour no */
+		}
+	}
+
+	/*
+	 * Move adjacent neurons by precomputed alpha*(1-((i-j)^2/[r]^2)) in radpower[|i-j|]
+	 * ---------------------------------------------------------------------------------
+	 */
+	protected void alterneigh(final int rad, final int i, final int b, final int g, final int r) {
+
+		int j, k, lo, hi, a, m;
+		int[] p;
+
+		lo = i - rad;
+		if (lo < -1) {
+			lo = -1;
+		}
+		hi = i + rad;
+		if (hi > netsize) {
+			hi = netsize;
+		}
+
+		j = i + 1;
+		k = i - 1;
+		m = 1;
+		while ((j < hi) || (k > lo)) {
+			a = radpower[m++];
+			if (j < hi) {
+				p = network[j++];
+				try {
+					p[0] -= (a * (p[0] - b)) / alpharadbias;
+					p[1] -= (a * (p[1] - g)) / alpharadbias;
+					p[2] -= (a * (p[2] - r)) / alpharadbias;
+				} catch (final Exception e) {
+				} // prevents 1.3 miscompilation
+			}
+			if (k > lo) {
+				p = network[k--];
+				try {
+					p[0] -= (a * (p[0] - b)) / alpharadbias;
+					p[1] -= (a * (p[1] - g)) / alpharadbias;
+					p[2] -= (a * (p[2] - r)) / alpharadbias;
+				} catch (final Exception e) {
+				}
+			}
+		}
+	}
+
+	/*
+	 * Move neuron i towards biased (b,g,r) by factor alpha ----------------------------------------------------
+	 */
+	protected void altersingle(final int alpha, final int i, final int b, final int g, final int r) {
+
+		/* alter hit neuron */
+		final int[] n = network[i];
+		n[0] -= (alpha * (n[0] - b)) / initalpha;
+		n[1] -= (alpha * (n[1] - g)) / initalpha;
+		n[2] -= (alpha * (n[2] - r)) / initalpha;
+	}
+
+	/*
+	 * Search for biased BGR values ----------------------------
+	 */
+	protected int contest(final int b, final int g, final int r) {
+
+		/* finds closest neuron (min dist) and updates freq */
+		/* finds best neuron (min dist-bias) and returns position */
+		/* for frequently chosen neurons, freq[i] is high and bias[i] is negative */
+		/* bias[i] = gamma*((1/netsize)-freq[i]) */
+
+		int i, dist, a, biasdist, betafreq;
+		int bestpos, bestbiaspos, bestd, bestbiasd;
+		int[] n;
+
+		bestd = ~((1) << 31);
+		bestbiasd = bestd;
+		bestpos = -1;
+		bestbiaspos = bestpos;
+
+		for (i = 0; i < netsize; i++) {
+			n = network[i];
+			dist = n[0] - b;
+			if (dist < 0) {
+				dist = -dist;
+			}
+			a = n[1] - g;
+			if (a < 0) {
+				a = -a;
+			}
+			dist += a;
+			a = n[2] - r;
+			if (a < 0) {
+				a = -a;
+			}
+			dist += a;
+			if (dist < bestd) {
+				bestd = dist;
+				bestpos = i;
+			}
+			biasdist = dist - ((bias[i]) >> (intbiasshift - netbiasshift));
+			if (biasdist < bestbiasd) {
+				bestbiasd = biasdist;
+				bestbiaspos = i;
+			}
+			betafreq = (freq[i] >> betashift);
+			freq[i] -= betafreq;
+			bias[i] += (betafreq << gammashift);
+		}
+		freq[bestpos] += beta;
+		bias[bestpos] -= betagamma;
+		return (bestbiaspos);
+	}
+}
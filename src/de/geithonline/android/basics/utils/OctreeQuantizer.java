@@ -0,0 +1,118 @@
+package de.geithonline.android.basics.utils;
+
+import java.util.Arrays;
+
+/**
+ * Octree quantizer (Gervautz and Purgathofer). The sampled pixels are counted into an octree five levels deep, whose leaves are the cells of a 32x32x32
+ * histogram. While there are more than 256 leaves, the least populated node of the deepest level that still has children absorbs them. Each remaining leaf
+ * becomes the mean color of its pixels. Cheap, and very good for flat graphics with few distinct colors.
+ */
+public class OctreeQuantizer extends AbstractColorQuantizer {
+
+	private static final int DEPTH = 5; // leaf level, one histogram cell per leaf
+	private static final int NODES = (1 + 8 + 64 + 512 + 4096); // inner nodes of levels 0..4
+
+	private final int[] nodeCount = new int[NODES];
+	private final long[] nodeB = new long[NODES];
+	private final long[] nodeG = new long[NODES];
+	private final long[] nodeR = new long[NODES];
+	private final int[] nodeChildren = new int[NODES]; // children holding pixels
+	private final boolean[] merged = new boolean[NODES]; // node has absorbed its children
+	private final int[] nodeEntry = new int[NODES]; // palette entry of a merged node
+	private final long[] order = new long[4096]; // count << 16 | node, for sorting one level
+
+	@Override
+	protected int buildPalette(final byte[] palette) {
+		histogram();
+		Arrays.fill(nodeCount, 0);
+		Arrays.fill(nodeB, 0);
+		Arrays.fill(nodeG, 0);
+		Arrays.fill(nodeR, 0);
+		Arrays.fill(nodeChildren, 0);
+		Arrays.fill(merged, false);
+
+		// sum the cells up into the inner nodes
+		int leaves = 0;
+		for (int key = 0; key < histCount.length; key++) {
+			final int count = histCount[key];
+			if (count == 0) {
+				continue;
+			}
+			leaves++;
+			final int b = key >> 10;
+			final int g = (key >> 5) & 31;
+			final int r = key & 31;
+			for (int level = 0; level < DEPTH; level++) {
+				final int node = node(level, b, g, r);
+				if (nodeCount[node] == 0) {
+					nodeChildren[parent(level, b, g, r)]++;
+				}
+				nodeCount[node] += count;
+				nodeB[node] += histB[key];
+				nodeG[node] += histG[key];
+				nodeR[node] += histR[key];
+			}
+			nodeChildren[node(DEPTH - 1, b, g, r)]++;
+		}
+		nodeChildren[0]--; // the root has no parent, parent(0) counted it
+
+		// reduce the deepest level first, least populated nodes first
+		for (int level = DEPTH - 1; (level >= 0) && (leaves > 256); level--) {
+			final int first = offset(level);
+			final int size = 1 << (3 * level);
+			int n = 0;
+			for (int node = first; node < first + size; node++) {
+				if (nodeCount[node] > 0) {
+					order[n++] = ((long) nodeCount[node] << 16) | (node - first);
+				}
+			}
+			Arrays.sort(order, 0, n);
+			for (int k = 0; (k < n) && (leaves > 256); k++) {
+				final int node = first + (int) (order[k] & 0xffff);
+				merged[node] = true;
+				leaves -= nodeChildren[node] - 1;
+			}
+		}
+
+		// one palette entry per merged node that is not inside another merged node, and per cell that is not inside any
+		Arrays.fill(nodeEntry, -1);
+		int colors = 0;
+		for (int key = 0; key < histCount.length; key++) {
+			if (histCount[key] == 0) {
+				continue;
+			}
+			final int b = key >> 10;
+			final int g = (key >> 5) & 31;
+			final int r = key & 31;
+			int level = 0;
+			while ((level < DEPTH) && !merged[node(level, b, g, r)]) {
+				level++;
+			}
+			if (level == DEPTH) {
+				setEntry(palette, colors++, histB[key], histG[key], histR[key], histCount[key]);
+			} else {
+				final int node = node(level, b, g, r);
+				if (nodeEntry[node] < 0) {
+					nodeEntry[node] = colors;
+					setEntry(palette, colors++, nodeB[node], nodeG[node], nodeR[node], nodeCount[node]);
+				}
+			}
+		}
+		return colors;
+	}
+
+	private static int offset(final int level) {
+		return ((1 << (3 * level)) - 1) / 7;
+	}
+
+	// node of the given level containing the 5 bit cell coordinates
+	private static int node(final int level, final int b, final int g, final int r) {
+		final int shift = DEPTH - level;
+		return offset(level) + (((b >> shift) << (2 * level)) | ((g >> shift) << level) | (r >> shift));
+	}
+
+	private static int parent(final int level, final int b, final int g, final int r) {
+		return (level == 0) ? 0 : node(level - 1, b, g, r);
+	}
+
+}
@@ -0,0 +1,120 @@
+package de.geithonline.android.basics.utils;
+
+import java.io.File;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+/**
+ * Memory cache of the bitmaps decoded by <code>BitmapHelper.getCustomImageSampled</code>, for images that are loaded again and again. An entry is keyed by
+ * the file path, the requested size and the modification time and length of the file, so a changed file is decoded anew; the entry of the old version is
+ * left to be evicted. The cache holds at most <code>maxBytes</code> of bitmap memory and evicts the least recently used entries first. A hit costs a lookup
+ * and a stat of the file, a miss decodes with a 32 KB temp storage the cache keeps per thread, so misses on several threads decode in parallel.
+ * <p>
+ * The bitmaps are shared by everyone getting them from the cache: they must not be changed or recycled. All methods are thread safe.
+ */
+public class SampledBitmapCache {
+
+	/** Default memory cap in bytes. */
+	public static final int DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+	private final LruCache<String, Bitmap> cache;
+	private final ThreadLocal<byte[]> tempStorage = new ThreadLocal<byte[]>() { // inTempStorage of the decodes of each thread
+		@Override
+		protected byte[] initialValue() {
+			return new byte[32 * 1024];
+		}
+	};
+
+	/**
+	 * Creates a cache of at most <code>DEFAULT_MAX_BYTES</code>.
+	 */
+	public SampledBitmapCache() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param maxBytes
+	 *            int memory cap of the cached bitmaps in bytes.
+	 */
+	public SampledBitmapCache(final int maxBytes) {
+		cache = new LruCache<String, Bitmap>(Math.max(1, maxBytes)) {
+			@Override
+			protected int sizeOf(final String key, final Bitmap value) {
+				return value.getAllocationByteCount();
+			}
+		};
+	}
+
+	/**
+	 * Returns the image like <code>BitmapHelper.getCustomImageSampled(filePath, reqWidth, reqHeight)</code>, from the cache if it was decoded before for that
+	 * size and the file did not change since.
+	 *
+	 * @return shared Bitmap, not to be changed or recycled, or null if the file cannot be decoded.
+	 */
+	public Bitmap get(final String filePath, final int reqWidth, final int reqHeight) {
+		final File file = new File(filePath);
+		final String key = filePath + '|' + reqWidth + 'x' + reqHeight + '|' + file.lastModified() + '|' + file.length();
+		Bitmap bitmap = cache.get(key);
+		if (bitmap == null) {
+			bitmap = BitmapHelper.decodeSampled(filePath, reqWidth, reqHeight, null, tempStorage.get());
+			if (bitmap != null) {
+				cache.put(key, bitmap);
+			}
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Evicts the least recently used entries until the cache holds at most maxBytes.
+	 *
+	 * @param maxBytes
+	 *            int bytes to keep.
+	 */
+	public void trimToSize(final int maxBytes) {
+		cache.trimToSize(maxBytes);
+	}
+
+	/**
+	 * Evicts all entries, e.g. when the system is low on memory.
+	 */
+	public void clear() {
+		cache.evictAll();
+	}
+
+	/**
+	 * @return bytes of the cached bitmaps.
+	 */
+	public int getSize() {
+		return cache.size();
+	}
+
+	/**
+	 * @return memory cap in bytes.
+	 */
+	public int getMaxSize() {
+		return cache.maxSize();
+	}
+
+	/**
+	 * @return lookups served from the cache.
+	 */
+	public int getHitCount() {
+		return cache.hitCount();
+	}
+
+	/**
+	 * @return lookups that had to decode.
+	 */
+	public int getMissCount() {
+		return cache.missCount();
+	}
+
+	/**
+	 * @return entries evicted to stay within the memory cap.
+	 */
+	public int getEvictionCount() {
+		return cache.evictionCount();
+	}
+
+}
@@ -0,0 +1,369 @@
+package de.geithonline.android.basics.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Disk cache of the bitmaps decoded by <code>BitmapHelper.getCustomImageSampled</code>, so a downsampled preview of a large photo costs a small decode
+ * instead of a full one, also after the app is restarted. An entry is keyed by the source path, its modification time and length and the requested size,
+ * and is stored in its own file in the cache directory: a short header holding the key, then the bitmap as JPEG, or as PNG if it has alpha.
+ * <p>
+ * Entries are written to a temporary file of their own, synced and renamed, so a crash never leaves a partial entry and concurrent misses of the same entry do
+ * not write into each other. Accesses are appended to a journal, which gives the least recently used order across restarts; when the entries exceed the byte
+ * budget, the least recently used ones are deleted. The journal is compacted when the cache is opened and whenever it grows well beyond the entries. Entries
+ * the journal missed in a crash are taken over when the cache is opened. All methods are thread safe.
+ */
+public class ThumbnailDiskCache implements Closeable {
+
+	/** Default byte budget of the entries. */
+	public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+	private static final int MAGIC = 0x54484d31; // "THM1", start of every entry
+	private static final String JOURNAL = "journal";
+	private static final String JOURNAL_HEADER = "ThumbnailDiskCache 1";
+	private static final String TMP = ".tmp";
+	private static final int JPEG_QUALITY = 90;
+
+	private final File directory;
+	private final long maxBytes;
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true); // file name to size, least recently used first
+	private final ThreadLocal<byte[]> tempStorage = new ThreadLocal<byte[]>() { // inTempStorage of the entry decodes of each thread
+		@Override
+		protected byte[] initialValue() {
+			return new byte[16 * 1024];
+		}
+	};
+	private long size; // bytes of all entries
+	private Writer journal;
+	private int journalLines; // records in the journal
+	private int hits;
+	private int misses;
+
+	/**
+	 * Opens the cache in directory with a budget of <code>DEFAULT_MAX_BYTES</code>, creating it if needed.
+	 */
+	public ThumbnailDiskCache(final File directory) throws IOException {
+		this(directory, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Opens the cache in directory, creating it if needed.
+	 *
+	 * @param directory
+	 *            File directory used by this cache only, e.g. below <code>Context.getCacheDir()</code>.
+	 * @param maxBytes
+	 *            long byte budget of the entries.
+	 * @throws IOException
+	 *             if the directory or journal cannot be written.
+	 */
+	public ThumbnailDiskCache(final File directory, final long maxBytes) throws IOException {
+		this.directory = directory;
+		this.maxBytes = Math.max(0, maxBytes);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create " + directory);
+		}
+		readJournal();
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				final String name = file.getName();
+				if (name.endsWith(TMP)) {
+					file.delete(); // left by a crash while writing
+				} else if (isEntryName(name) && !entries.containsKey(name)) {
+					entries.put(name, file.length()); // written, but not journaled before a crash
+				}
+			}
+		}
+		for (final Iterator<Map.Entry<String, Long>> i = entries.entrySet().iterator(); i.hasNext();) {
+			final Map.Entry<String, Long> entry = i.next();
+			if (new File(directory, entry.getKey()).isFile()) {
+				size += entry.getValue();
+			} else {
+				i.remove();
+			}
+		}
+		rewriteJournal();
+		trim();
+	}
+
+	/**
+	 * Returns the image like <code>BitmapHelper.getCustomImageSampled(filePath, reqWidth, reqHeight)</code>, from the cache if it was stored for that size
+	 * and the file did not change since. Else it is decoded from the file and stored.
+	 *
+	 * @return Bitmap or null if the file cannot be decoded.
+	 */
+	public Bitmap get(final String filePath, final int reqWidth, final int reqHeight) {
+		final File source = new File(filePath);
+		final String key = filePath + '|' + source.lastModified() + '|' + source.length() + '|' + reqWidth + 'x' + reqHeight;
+		final String name = nameOf(key);
+		final File file = new File(directory, name);
+		boolean cached;
+		synchronized (this) {
+			cached = entries.get(name) != null;
+			if (cached) {
+				journal("R " + name);
+			}
+		}
+		Bitmap bitmap = cached ? read(file, key) : null;
+		synchronized (this) {
+			if (bitmap != null) {
+				hits++;
+				return bitmap;
+			}
+			misses++;
+		}
+		bitmap = BitmapHelper.getCustomImageSampled(filePath, reqWidth, reqHeight);
+		if (bitmap != null) {
+			put(name, key, bitmap);
+		}
+		return bitmap;
+	}
+
+	// the header and bitmap of an entry, null if it cannot be read or belongs to another key
+	private Bitmap read(final File file, final String key) {
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file));
+			final DataInputStream data = new DataInputStream(in);
+			if ((data.readInt() != MAGIC) || !key.equals(data.readUTF())) {
+				return null;
+			}
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+			options.inTempStorage = tempStorage.get();
+			return BitmapFactory.decodeStream(data, null, options);
+		} catch (final IOException e) {
+			return null; // deleted or damaged, decoded again
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	// writes an entry to a temporary file and renames it once it is on storage
+	private void put(final String name, final String key, final Bitmap bitmap) {
+		final File file = new File(directory, name);
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(name, TMP, directory); // unique, another thread may be putting the same entry
+			final FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+				out.writeInt(MAGIC);
+				out.writeUTF(key);
+				bitmap.compress(bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+			synchronized (this) {
+				if (!tmp.renameTo(file)) {
+					throw new IOException("cannot rename " + tmp);
+				}
+				final Long old = entries.put(name, file.length());
+				size += file.length() - ((old != null) ? old : 0);
+				journal("P " + name + ' ' + file.length());
+				trim();
+			}
+		} catch (final IOException e) {
+			if (tmp != null) {
+				tmp.delete();
+			}
+			Log.w("GEITH", "Thumbnail not cached: " + e);
+		}
+	}
+
+	// deletes the least recently used entries until the entries fit into the budget
+	private synchronized void trim() {
+		final Iterator<Map.Entry<String, Long>> oldest = entries.entrySet().iterator();
+		while ((size > maxBytes) && oldest.hasNext()) {
+			final Map.Entry<String, Long> entry = oldest.next();
+			oldest.remove();
+			size -= entry.getValue();
+			new File(directory, entry.getKey()).delete();
+			journal("D " + entry.getKey());
+		}
+	}
+
+	// appends a record to the journal, compacting it once it holds far more records than entries
+	private void journal(final String record) {
+		if (journal == null) {
+			return; // closed or failed, the files stay consistent
+		}
+		try {
+			if (journalLines > 2 * entries.size() + 1000) {
+				rewriteJournal();
+			}
+			journal.write(record);
+			journal.write('\n');
+			journal.flush();
+			journalLines++;
+		} catch (final IOException e) {
+			Log.w("GEITH", "Thumbnail journal not written: " + e);
+			closeQuietly(journal);
+			journal = null;
+		}
+	}
+
+	// replays the journal into the entries, ignoring a record cut off by a crash
+	private void readJournal() {
+		final File file = new File(directory, JOURNAL);
+		if (!file.isFile()) {
+			return;
+		}
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(file));
+			if (!JOURNAL_HEADER.equals(in.readLine())) {
+				return;
+			}
+			String line;
+			while ((line = in.readLine()) != null) {
+				final String[] record = line.split(" ");
+				if ((record.length < 2) || !isEntryName(record[1])) {
+					continue;
+				}
+				if (record[0].equals("P") && (record.length == 3)) {
+					entries.put(record[1], Long.parseLong(record[2]));
+				} else if (record[0].equals("R")) {
+					entries.get(record[1]);
+				} else if (record[0].equals("D")) {
+					entries.remove(record[1]);
+				}
+			}
+		} catch (final IOException e) {
+			Log.w("GEITH", "Thumbnail journal not read: " + e);
+		} catch (final NumberFormatException e) {
+			// cut off, the records before it count
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	// writes a journal holding just the entries, in their order, and replaces the old one
+	private void rewriteJournal() throws IOException {
+		closeQuietly(journal);
+		journal = null;
+		final File tmp = new File(directory, JOURNAL + TMP);
+		final FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			final Writer out = new OutputStreamWriter(new BufferedOutputStream(fos), "US-ASCII");
+			out.write(JOURNAL_HEADER);
+			out.write('\n');
+			for (final Map.Entry<String, Long> entry : entries.entrySet()) {
+				out.write("P " + entry.getKey() + ' ' + entry.getValue() + '\n');
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		final File file = new File(directory, JOURNAL);
+		if (!tmp.renameTo(file)) {
+			throw new IOException("cannot rename " + tmp);
+		}
+		journal = new OutputStreamWriter(new FileOutputStream(file, true), "US-ASCII");
+		journalLines = entries.size();
+	}
+
+	// 64 bit FNV-1a hash of the key as 16 hex digits
+	private static String nameOf(final String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		final String hex = Long.toHexString(hash);
+		return "0000000000000000".substring(hex.length()) + hex;
+	}
+
+	private static boolean isEntryName(final String name) {
+		if (name.length() != 16) {
+			return false;
+		}
+		for (int i = 0; i < 16; i++) {
+			if (Character.digit(name.charAt(i), 16) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void closeQuietly(final Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (final IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Deletes all entries.
+	 */
+	public synchronized void clear() {
+		for (final String name : entries.keySet()) {
+			new File(directory, name).delete();
+			journal("D " + name);
+		}
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * Closes the journal. The cache still serves and stores entries, but their order is not kept past this instance.
+	 */
+	@Override
+	public synchronized void close() {
+		closeQuietly(journal);
+		journal = null;
+	}
+
+	/**
+	 * @return bytes of all entries.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return byte budget of the entries.
+	 */
+	public long getMaxSize() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return lookups served from the cache.
+	 */
+	public synchronized int getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * @return lookups that decoded the source file.
+	 */
+	public synchronized int getMissCount() {
+		return misses;
+	}
+
+}
@@ -0,0 +1,259 @@
+package de.geithonline.android.basics.utils;
+
+import java.util.Arrays;
+
+/**
+ * Wu's color quantizer (Xiaolin Wu, "Efficient Statistical Computations for Optimal Color Quantization", Graphics Gems II). Builds cumulative moments of the
+ * sampled colors over a 33x33x33 lattice, so the variance of any box can be computed in constant time, then repeatedly splits the box with the largest
+ * variance where the split reduces it most. Each box becomes the mean color of its pixels. Usually the best palette of the included quantizers at a fraction
+ * of the NeuQuant cost.
+ */
+public class WuQuantizer extends AbstractColorQuantizer {
+
+	private static final int SIDE = 33;
+	private static final int SIZE = SIDE * SIDE * SIDE;
+	private static final int BLUE = 0, GREEN = 1, RED = 2;
+
+	// moments: pixel count, color sums and sum of squares, cumulative after moments()
+	private final long[] wt = new long[SIZE];
+	private final long[] mb = new long[SIZE];
+	private final long[] mg = new long[SIZE];
+	private final long[] mr = new long[SIZE];
+	private final double[] m2 = new double[SIZE];
+
+	// boxes: exclusive lower and inclusive upper lattice coordinates per channel
+	private final int[] b0 = new int[256], b1 = new int[256];
+	private final int[] g0 = new int[256], g1 = new int[256];
+	private final int[] r0 = new int[256], r1 = new int[256];
+	private final double[] variance = new double[256];
+	private final int[] cut = new int[3];
+
+	// scratch for moments()
+	private final long[] area = new long[SIDE], areaB = new long[SIDE], areaG = new long[SIDE], areaR = new long[SIDE];
+	private final double[] area2 = new double[SIDE];
+
+	@Override
+	protected int buildPalette(final byte[] palette) {
+		histogram3d();
+		moments();
+		b0[0] = g0[0] = r0[0] = 0;
+		b1[0] = g1[0] = r1[0] = SIDE - 1;
+		int boxes = 1;
+		int next = 0;
+		variance[0] = 0;
+		for (int i = 1; i < 256; i++) {
+			if (cut(next, i)) {
+				variance[next] = (volumeCells(next) > 1) ? variance(next) : 0;
+				variance[i] = (volumeCells(i) > 1) ? variance(i) : 0;
+				boxes = i + 1;
+			} else {
+				variance[next] = 0;
+				i--;
+			}
+			next = 0;
+			double temp = variance[0];
+			for (int k = 1; k < boxes; k++) {
+				if (variance[k] > temp) {
+					temp = variance[k];
+					next = k;
+				}
+			}
+			if (temp <= 0) {
+				break;
+			}
+		}
+		int colors = 0;
+		for (int k = 0; k < boxes; k++) {
+			final long weight = volume(k, wt);
+			if (weight > 0) {
+				setEntry(palette, colors++, volume(k, mb), volume(k, mg), volume(k, mr), weight);
+			}
+		}
+		return colors;
+	}
+
+	private static int index(final int b, final int g, final int r) {
+		return (b * SIDE + g) * SIDE + r;
+	}
+
+	private void histogram3d() {
+		Arrays.fill(wt, 0);
+		Arrays.fill(mb, 0);
+		Arrays.fill(mg, 0);
+		Arrays.fill(mr, 0);
+		Arrays.fill(m2, 0);
+		final int step = 3 * sample;
+		for (int i = 0; i + 2 < length; i += step) {
+			final int b = pixels[i] & 0xff;
+			final int g = pixels[i + 1] & 0xff;
+			final int r = pixels[i + 2] & 0xff;
+			final int ind = index((b >> 3) + 1, (g >> 3) + 1, (r >> 3) + 1);
+			wt[ind]++;
+			mb[ind] += b;
+			mg[ind] += g;
+			mr[ind] += r;
+			m2[ind] += b * b + g * g + r * r;
+		}
+	}
+
+	// turns the histogram into cumulative moments, m[b][g][r] = sum over all cells up to b, g, r
+	private void moments() {
+		for (int b = 1; b < SIDE; b++) {
+			Arrays.fill(area, 0);
+			Arrays.fill(areaB, 0);
+			Arrays.fill(areaG, 0);
+			Arrays.fill(areaR, 0);
+			Arrays.fill(area2, 0);
+			for (int g = 1; g < SIDE; g++) {
+				long line = 0, lineB = 0, lineG = 0, lineR = 0;
+				double line2 = 0;
+				for (int r = 1; r < SIDE; r++) {
+					final int ind1 = index(b, g, r);
+					line += wt[ind1];
+					lineB += mb[ind1];
+					lineG += mg[ind1];
+					lineR += mr[ind1];
+					line2 += m2[ind1];
+					area[r] += line;
+					areaB[r] += lineB;
+					areaG[r] += lineG;
+					areaR[r] += lineR;
+					area2[r] += line2;
+					final int ind2 = ind1 - SIDE * SIDE; // previous b
+					wt[ind1] = wt[ind2] + area[r];
+					mb[ind1] = mb[ind2] + areaB[r];
+					mg[ind1] = mg[ind2] + areaG[r];
+					mr[ind1] = mr[ind2] + areaR[r];
+					m2[ind1] = m2[ind2] + area2[r];
+				}
+			}
+		}
+	}
+
+	private int volumeCells(final int k) {
+		return (b1[k] - b0[k]) * (g1[k] - g0[k]) * (r1[k] - r0[k]);
+	}
+
+	private long volume(final int k, final long[] m) {
+		return m[index(b1[k], g1[k], r1[k])] - m[index(b1[k], g1[k], r0[k])] - m[index(b1[k], g0[k], r1[k])] + m[index(b1[k], g0[k], r0[k])]
+				- m[index(b0[k], g1[k], r1[k])] + m[index(b0[k], g1[k], r0[k])] + m[index(b0[k], g0[k], r1[k])] - m[index(b0[k], g0[k], r0[k])];
+	}
+
+	private double volume(final int k, final double[] m) {
+		return m[index(b1[k], g1[k], r1[k])] - m[index(b1[k], g1[k], r0[k])] - m[index(b1[k], g0[k], r1[k])] + m[index(b1[k], g0[k], r0[k])]
+				- m[index(b0[k], g1[k], r1[k])] + m[index(b0[k], g1[k], r0[k])] + m[index(b0[k], g0[k], r1[k])] - m[index(b0[k], g0[k], r0[k])];
+	}
+
+	// part of the volume that does not depend on the cut position along dir
+	private long bottom(final int k, final int dir, final long[] m) {
+		switch (dir) {
+			case BLUE:
+				return -m[index(b0[k], g1[k], r1[k])] + m[index(b0[k], g1[k], r0[k])] + m[index(b0[k], g0[k], r1[k])] - m[index(b0[k], g0[k], r0[k])];
+			case GREEN:
+				return -m[index(b1[k], g0[k], r1[k])] + m[index(b1[k], g0[k], r0[k])] + m[index(b0[k], g0[k], r1[k])] - m[index(b0[k], g0[k], r0[k])];
+			default:
+				return -m[index(b1[k], g1[k], r0[k])] + m[index(b1[k], g0[k], r0[k])] + m[index(b0[k], g1[k], r0[k])] - m[index(b0[k], g0[k], r0[k])];
+		}
+	}
+
+	// part of the volume that depends on the cut position along dir
+	private long top(final int k, final int dir, final int pos, final long[] m) {
+		switch (dir) {
+			case BLUE:
+				return m[index(pos, g1[k], r1[k])] - m[index(pos, g1[k], r0[k])] - m[index(pos, g0[k], r1[k])] + m[index(pos, g0[k], r0[k])];
+			case GREEN:
+				return m[index(b1[k], pos, r1[k])] - m[index(b1[k], pos, r0[k])] - m[index(b0[k], pos, r1[k])] + m[index(b0[k], pos, r0[k])];
+			default:
+				return m[index(b1[k], g1[k], pos)] - m[index(b1[k], g0[k], pos)] - m[index(b0[k], g1[k], pos)] + m[index(b0[k], g0[k], pos)];
+		}
+	}
+
+	private double variance(final int k) {
+		final double db = volume(k, mb);
+		final double dg = volume(k, mg);
+		final double dr = volume(k, mr);
+		final double xx = volume(k, m2);
+		return xx - (db * db + dg * dg + dr * dr) / volume(k, wt);
+	}
+
+	// best cut of box k along dir between first and last, stored in cut[dir]; returns the resulting reduction measure
+	private double maximize(final int k, final int dir, final int first, final int last, final long wholeB, final long wholeG, final long wholeR,
+			final long wholeW) {
+		final long baseB = bottom(k, dir, mb);
+		final long baseG = bottom(k, dir, mg);
+		final long baseR = bottom(k, dir, mr);
+		final long baseW = bottom(k, dir, wt);
+		double max = 0;
+		cut[dir] = -1;
+		for (int i = first; i < last; i++) {
+			double halfB = baseB + top(k, dir, i, mb);
+			double halfG = baseG + top(k, dir, i, mg);
+			double halfR = baseR + top(k, dir, i, mr);
+			double halfW = baseW + top(k, dir, i, wt);
+			if (halfW == 0) {
+				continue; // never split into an empty box
+			}
+			double temp = (halfB * halfB + halfG * halfG + halfR * halfR) / halfW;
+			halfB = wholeB - halfB;
+			halfG = wholeG - halfG;
+			halfR = wholeR - halfR;
+			halfW = wholeW - halfW;
+			if (halfW == 0) {
+				continue;
+			}
+			temp += (halfB * halfB + halfG * halfG + halfR * halfR) / halfW;
+			if (temp > max) {
+				max = temp;
+				cut[dir] = i;
+			}
+		}
+		return max;
+	}
+
+	// splits box k, the upper part goes to box j
+	private boolean cut(final int k, final int j) {
+		final long wholeB = volume(k, mb);
+		final long wholeG = volume(k, mg);
+		final long wholeR = volume(k, mr);
+		final long wholeW = volume(k, wt);
+
+		final double maxB = maximize(k, BLUE, b0[k] + 1, b1[k], wholeB, wholeG, wholeR, wholeW);
+		final double maxG = maximize(k, GREEN, g0[k] + 1, g1[k], wholeB, wholeG, wholeR, wholeW);
+		final double maxR = maximize(k, RED, r0[k] + 1, r1[k], wholeB, wholeG, wholeR, wholeW);
+
+		final int dir;
+		if ((maxB >= maxG) && (maxB >= maxR)) {
+			dir = BLUE;
+			if (cut[BLUE] < 0) {
+				return false; // can't split the box
+			}
+		} else if ((maxG >= maxB) && (maxG >= maxR)) {
+			dir = GREEN;
+		} else {
+			dir = RED;
+		}
+
+		b1[j] = b1[k];
+		g1[j] = g1[k];
+		r1[j] = r1[k];
+		switch (dir) {
+			case BLUE:
+				b0[j] = b1[k] = cut[BLUE];
+				g0[j] = g0[k];
+				r0[j] = r0[k];
+				break;
+			case GREEN:
+				g0[j] = g1[k] = cut[GREEN];
+				b0[j] = b0[k];
+				r0[j] = r0[k];
+				break;
+			default:
+				r0[j] = r1[k] = cut[RED];
+				b0[j] = b0[k];
+				g0[j] = g0[k];
+				break;
+		}
+		return true;
+	}
+
+}